@@ -0,0 +1,165 @@
+package com.flyingspaniel.xen;
+
+import java.util.*;
+
+/**
+ * A secondary index, from attribute value to the children of one Xen, so that Xpath lookups like
+ * <code>catalog/item[@id='SKU-123456']</code> become a hash probe instead of testing every item.
+ *
+ * Create these via {@link Xen#createIndex(String, String)}.  Xpath.evaluate() uses them automatically
+ * for [@a='val'] predicates (not for regular expressions).
+ * They are maintained through append(), remove(), putAttributes(), setAttributes() and the bulk operations
+ * like appendAll() and sortChildren(), but changes made directly to the Collections from Xen.children()
+ * or Xen.attributes() are <em>not</em> tracked.
+ *
+ * As with [@a='val'], a child without the attribute is indexed under "".
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class AttributeIndex {
+
+   protected final Xen parent;
+   protected final String childName;
+   protected final String attributeName;
+
+   private final Map<String, List<Xen>> byValue = new HashMap<String, List<Xen>>();  // each List in document order
+
+
+   /**
+    * Constructor, builds the index from the current children
+    * @param parent         whose children are indexed
+    * @param childName      name of children to index, or "*" for all
+    * @param attributeName  attribute to index
+    */
+   AttributeIndex(Xen parent, String childName, String attributeName) {
+      this.parent = parent;
+      this.childName = childName;
+      this.attributeName = attributeName;
+
+      rebuild();
+   }
+
+
+   // from scratch, after bulk changes to our parent's children
+   void rebuild() {
+      byValue.clear();
+      for (Xen child : parent.children)
+         added(child);
+   }
+
+
+   static String key(String childName, String attributeName) {
+      return childName + "[" + Xpath.ATTRIBUTE + attributeName + "]";
+   }
+
+
+   public String childName() { return childName; }
+
+   public String attributeName() { return attributeName; }
+
+   /**
+    * @return  number of distinct values
+    */
+   public int size() { return byValue.size(); }
+
+
+   /**
+    * Find all indexed children whose attribute equals value.  Only reads the index, so concurrent lookups are safe.
+    * @param value  to match, use "" to find children lacking the attribute
+    * @return  never null, a new List in document order
+    */
+   public List<Xen> lookup(String value) {
+      List<Xen> found = byValue.get(value);
+      return (found != null) ? new ArrayList<Xen>(found) : new ArrayList<Xen>();
+   }
+
+
+   boolean indexes(Xen child) {
+      return Xpath.WILDCARD.equals(childName) || childName.equals(child.name);
+   }
+
+
+   void added(Xen child) {
+      if (!indexes(child))
+         return;
+
+      String value = child.attribute(attributeName);
+      List<Xen> list = byValue.get(value);
+      if (list == null) {
+         list = new ArrayList<Xen>(1);
+         byValue.put(value, list);
+      }
+      list.add(child);
+   }
+
+
+   void removed(Xen child) {
+      if (indexes(child))
+         removeFrom(child.attribute(attributeName), child);
+   }
+
+
+   /**
+    * Called when an attribute of a child has changed
+    */
+   void changed(Xen child, String name, String oldValue, String newValue) {
+      if (!attributeName.equals(name) || !indexes(child))
+         return;
+      if (oldValue == null)
+         oldValue = "";
+      if (newValue == null)
+         newValue = "";
+      if (oldValue.equals(newValue) || !removeFrom(oldValue, child))
+         return;
+
+      List<Xen> list = byValue.get(newValue);
+      if (list == null) {
+         list = new ArrayList<Xen>(1);
+         byValue.put(newValue, list);
+      }
+
+      list.add(insertionPoint(list, newValue, child), child);
+   }
+
+
+   // removes by identity, returns true if it was there
+   private boolean removeFrom(String value, Xen child) {
+      List<Xen> list = byValue.get(value);
+      if (list == null)
+         return false;
+
+      for (int i = 0; i < list.size(); i++) {
+         if (list.get(i) == child) {
+            list.remove(i);
+            if (list.isEmpty())
+               byValue.remove(value);
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+
+   // where child goes in the list for value, to keep it in document order: the number of its members preceding child.
+   // Stops at child, or once every member has been passed, so adding near the start of our children, or after the rest, is quick.
+   private int insertionPoint(List<Xen> list, String value, Xen child) {
+      int preceding = 0;
+      for (Xen sibling : parent.children) {
+         if ((sibling == child) || (preceding == list.size()))
+            break;
+         if (indexes(sibling) && value.equals(sibling.attribute(attributeName)))
+            preceding++;
+      }
+      return preceding;
+   }
+
+
+   @Override
+   public String toString() {
+      return "AttributeIndex[" + parent.absolutePath() + " " + key(childName, attributeName) + ", " + byValue.size() + " values]";
+   }
+
+}
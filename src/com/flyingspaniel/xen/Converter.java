@@ -2,10 +2,20 @@ package com.flyingspaniel.xen;
 
 import org.w3c.dom.*;
 
-import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
- * Interface for Converters for Xens, and three implementations
+ * Interface for Converters for Xens, and six implementations
  *
  * @author Morgan Conrad
  * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
@@ -19,9 +29,27 @@ public interface Converter<FROM, TO> {
    public static class FromDocument implements Converter<Document, Xen>  {
 
       final boolean trimText;
+      final ForkJoinPool pool;
+      final int parallelThreshold;
 
       public FromDocument(boolean trimText) {
+         this(trimText, null, Integer.MAX_VALUE);
+      }
+
+      /**
+       * Constructor to convert wide Elements in parallel.
+       * <b>Note:</b> the DOM must allow different threads to read different Elements at the same time.
+       * Many do not, e.g. a Xerces DOM with deferred node expansion, so this is off by default.
+       *
+       * @param trimText           trim whitespace from the ends of the text
+       * @param pool               if null, conversion is sequential
+       * @param parallelThreshold  children of an Element with at least this many child Elements are converted in parallel,
+       *                           in ranges of about this size
+       */
+      public FromDocument(boolean trimText, ForkJoinPool pool, int parallelThreshold) {
          this.trimText = trimText;
+         this.pool = pool;
+         this.parallelThreshold = Math.max(1, parallelThreshold);
       }
 
       public static final FromDocument DEFAULT = new FromDocument(true);
@@ -43,30 +71,121 @@ public interface Converter<FROM, TO> {
        * @param parent   of the new Element
        * @return  new Xen
        */
-      public Xen convertFromElement(Element e, Xen parent) {
+      public Xen convertFromElement(final Element e, final Xen parent) {
+         if ((pool == null) || ForkJoinTask.inForkJoinPool())
+            return convertSubtree(e, parent);
+
+         return pool.invoke(new RecursiveTask<Xen>() {
+            protected Xen compute() {
+               return convertSubtree(e, parent);
+            }
+         });
+      }
+
+
+      /*
+       * Walks the DOM with getFirstChild() and getNextSibling(), which are O(1) in all DOMs, unlike NodeList.item()
+       */
+      protected Xen convertSubtree(Element e, Xen parent) {
+         Xen top = newXen(e, parent);
+
+         // Elements on the stack have had their Xen created, but not their children
+         ArrayDeque<Element> elements = new ArrayDeque<Element>();
+         ArrayDeque<Xen> xens = new ArrayDeque<Xen>();
+         elements.push(e);
+         xens.push(top);
+
+         while (!elements.isEmpty()) {
+            Element element = elements.pop();
+            Xen xen = xens.pop();
+
+            // first pass: count the child Elements and gather the text
+            int childCount = 0;
+            String text = null;
+            StringBuilder moreText = null;  // only needed if there are several Text nodes
+            for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+               if (node instanceof Element)
+                  childCount++;
+               else if (node instanceof Text) {
+                  if (text == null)
+                     text = node.getNodeValue();
+                  else {
+                     if (moreText == null)
+                        moreText = new StringBuilder(text);
+                     moreText.append(node.getNodeValue());
+                  }
+               }
+            }
+            if (text != null)
+               xen.text = (moreText != null) ? moreText.toString() : text;
+            xen.trimText(trimText);
+
+            if (childCount == 0)
+               continue;
+
+            xen.children = new ArrayList<Xen>(childCount);
+            if ((pool != null) && (childCount >= parallelThreshold)) {
+               convertInParallel(element, xen, childCount);
+               continue;
+            }
+
+            for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+               if (node instanceof Element) {
+                  Xen child = newXen((Element) node, xen);
+                  xen.appendNew(child);
+                  elements.push((Element) node);
+                  xens.push(child);
+               }
+            }
+         }
+
+         return top;
+      }
+
+
+      // splits the child Elements into ranges, converts each range as a separate task, then appends them in order
+      protected void convertInParallel(Element element, final Xen xen, int childCount) {
+         final Element[] childElements = new Element[childCount];
+         int i = 0;
+         for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling())
+            if (node instanceof Element)
+               childElements[i++] = (Element) node;
+
+         List<RecursiveTask<List<Xen>>> tasks = new ArrayList<RecursiveTask<List<Xen>>>();
+         for (int start = 0; start < childCount; start += parallelThreshold) {
+            final int from = start;
+            final int to = Math.min(childCount, start + parallelThreshold);
+            tasks.add(new RecursiveTask<List<Xen>>() {
+               protected List<Xen> compute() {
+                  List<Xen> converted = new ArrayList<Xen>(to - from);
+                  for (int c = from; c < to; c++)
+                     converted.add(convertSubtree(childElements[c], xen));
+                  return converted;
+               }
+            });
+         }
+
+         ForkJoinTask.invokeAll(tasks);
+         for (RecursiveTask<List<Xen>> task : tasks)
+            for (Xen child : task.join())
+               xen.appendNew(child);
+      }
+
+
+      protected Xen newXen(Element e, Xen parent) {
          Xen xen = new Xen(e.getTagName(), parent);
          NamedNodeMap eAttrs = e.getAttributes();
          int len = eAttrs.getLength();
          if (len > 0) {
-            Map<String, String> attrsMap = xen.attributes();
+            Map<String, String> attrsMap = new LinkedHashMap<String, String>((int) (len / 0.75f) + 1);
             for (int i = 0; i < len; i++) {
                Node node = eAttrs.item(i);
                attrsMap.put(node.getNodeName(), node.getNodeValue());
             }
+            xen.attrs = attrsMap;
          }
 
-         NodeList eChildren = e.getChildNodes();
-         for (int i = 0; i < eChildren.getLength(); i++) {
-            Node node = eChildren.item(i);
-            if (node instanceof Element) {
-               Xen child = convertFromElement((Element) node, xen);
-               xen.append(child);
-            } else if (node instanceof Text) {
-               xen.text += node.getNodeValue();
-            }
-         }
-
-         return xen.trimText(trimText);
+         return xen;
       }
 
    }
@@ -74,12 +193,40 @@ public interface Converter<FROM, TO> {
 
    public static class ToDocument implements Converter<Xen, Document>  {
 
+      // DocumentBuilders are expensive to create and not thread-safe, so keep one per thread
+      private static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>() {
+         @Override
+         protected DocumentBuilder initialValue() {
+            try {
+               return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            }
+            catch (ParserConfigurationException pce) {
+               throw new IllegalStateException(pce);
+            }
+         }
+      };
+
       final Document document;
 
       public ToDocument( Document document) {
          this.document = document;
       }
 
+      /**
+       * Convert into a new blank Document, see newDocument()
+       */
+      public ToDocument() {
+         this(newDocument());
+      }
+
+
+      /**
+       * @return a new, blank Document, from a DocumentBuilder cached for this thread
+       */
+      public static Document newDocument() {
+         return BUILDER.get().newDocument();
+      }
+
 
       public Document convert(Xen root) {
          Element element = toElement(root);
@@ -88,22 +235,117 @@ public interface Converter<FROM, TO> {
       }
 
 
+      /**
+       * Parallel version of convert().  Ranges of root's children are built by the pool, each in a separate
+       * scratch Document (since DOMs are not thread-safe), then adopted into ours and appended in order.
+       * @param root  to be converted
+       * @param pool  if null, same as convert()
+       * @return our Document
+       */
+      public Document convert(Xen root, ForkJoinPool pool) {
+         if ((pool == null) || (root.children.size() < 2))
+            return convert(root);
+
+         Element element = newElement(root, document);
+         element.appendChild(toFragment(root.children, pool));
+         document.appendChild(element);
+         return document;
+      }
+
+
+      /**
+       * Converts several Xens, concurrently, into a DocumentFragment of our Document, in the same order
+       * @param xens  to be converted
+       * @param pool  non-null
+       * @return DocumentFragment, which may be appended anywhere in our Document
+       */
+      public DocumentFragment toFragment(final List<Xen> xens, ForkJoinPool pool) {
+         int size = Math.max(1, xens.size() / (pool.getParallelism() * 4));
+         List<ForkJoinTask<List<Element>>> tasks = new ArrayList<ForkJoinTask<List<Element>>>();
+         for (int start = 0; start < xens.size(); start += size) {
+            final int from = start;
+            final int to = Math.min(xens.size(), start + size);
+            tasks.add(pool.submit(new RecursiveTask<List<Element>>() {
+               protected List<Element> compute() {
+                  Document scratch = newDocument();
+                  List<Element> elements = new ArrayList<Element>(to - from);
+                  for (int i = from; i < to; i++)
+                     elements.add(toElement(xens.get(i), scratch));
+                  return elements;
+               }
+            }));
+         }
+
+         DocumentFragment fragment = document.createDocumentFragment();
+         for (ForkJoinTask<List<Element>> task : tasks) {
+            for (Element element : task.join()) {
+               Node adopted = document.adoptNode(element);
+               fragment.appendChild((adopted != null) ? adopted : document.importNode(element, true));
+            }
+         }
+         return fragment;
+      }
+
+
       /**
        * Exports this get (which should generally not be root) to an Element
        * @return newly created Element
        */
       public Element toElement(Xen xen) {
+         return toElement(xen, document);
+      }
 
-         Element element = document.createElement(xen.name());
-         element.setTextContent(xen.text());  // do before we add children
 
-         for (Map.Entry<String,String> attr : xen.attrs.entrySet())
-            element.setAttribute(attr.getKey(), attr.getValue());
+      /**
+       * Builds the Element in the given Document
+       * @return newly created Element
+       */
+      protected Element toElement(Xen xen, Document doc) {
+         // Each Element is appended to its parent only after all of its children, so the DOM's
+         // "is the new child an ancestor?" check never has to walk a long chain
+         ArrayDeque<Building> stack = new ArrayDeque<Building>();
+         stack.push(new Building(xen, newElement(xen, doc)));
 
-         for (Xen xenChild : xen.children) {
-            Element childElement = toElement(xenChild);
-            element.appendChild(childElement);
+         while (true) {
+            Building building = stack.peek();
+            if (building.next < building.xen.children.size()) {
+               Xen xenChild = building.xen.children.get(building.next++);
+               stack.push(new Building(xenChild, newElement(xenChild, doc)));
+            }
+            else {
+               stack.pop();
+               if (stack.isEmpty())
+                  return building.element;
+               stack.peek().element.appendChild(building.element);
+            }
          }
+      }
+
+
+      // an Element whose children before next have been appended
+      static final class Building {
+         final Xen xen;
+         final Element element;
+         int next = 0;
+
+         Building(Xen xen, Element element) {
+            this.xen = xen;
+            this.element = element;
+         }
+      }
+
+
+      protected Element newElement(Xen xen) {
+         return newElement(xen, document);
+      }
+
+      protected Element newElement(Xen xen, Document doc) {
+         Element element = doc.createElement(xen.name());
+         if (xen.text.length() > 0)
+            element.appendChild(doc.createTextNode(xen.text));  // do before we add children, no need for setTextContent()
+
+         for (Map.Entry<String,String> attr : xen.attrs.entrySet())
+            element.setAttribute(attr.getKey(), attr.getValue());
 
          return element;
       }
@@ -117,6 +359,8 @@ public interface Converter<FROM, TO> {
       protected final String indentPerLevel;
       protected final String initialIndent;
 
+      protected final boolean asciiOnly;
+
       public static final ToXML DEFAULT = new ToXML("  ", "  ");
       /**
        * Constructor
@@ -124,8 +368,20 @@ public interface Converter<FROM, TO> {
        * @param indentPerLevel  typically a two space String "  ", must be non-null;
        */
       public ToXML(String initialIndent, String indentPerLevel) {
+         this(initialIndent, indentPerLevel, true);
+      }
+
+      /**
+       * Full Constructor
+       * @param initialIndent   typically an empty String, must be non-null
+       * @param indentPerLevel  typically a two space String "  ", must be non-null;
+       * @param asciiOnly       if true (the default) characters above 0x7e are written as numeric entities like &amp;#233;
+       *                        if false they are written as is, which is smaller and faster
+       */
+      public ToXML(String initialIndent, String indentPerLevel, boolean asciiOnly) {
          this.initialIndent = initialIndent;
          this.indentPerLevel = indentPerLevel;
+         this.asciiOnly = asciiOnly;
       }
 
 
@@ -136,49 +392,277 @@ public interface Converter<FROM, TO> {
        */
       public StringBuilder convert(Xen xen) {
          StringBuilder sb = new StringBuilder();
-         return convertToXML(xen, sb, initialIndent);
+         XenMetrics metrics = XenMetrics.get();
+         if (!metrics.isEnabled())
+            return convertToXML(xen, sb, initialIndent);
+
+         long start = System.nanoTime();
+         convertToXML(xen, sb, initialIndent);
+         metrics.serialized("ToXML", System.nanoTime() - start, sb.length());
+         return sb;
       }
 
 
 
       public StringBuilder convertToXML(Xen xen, StringBuilder sb, String indent) {
+         ArrayDeque<Opened> stack = new ArrayDeque<Opened>();
+         if (open(xen, sb, indent))
+            stack.push(new Opened(xen, indent, indentPerLevel));
+
+         while (!stack.isEmpty()) {
+            Opened opened = stack.peek();
+            if (opened.next < opened.xen.children.size()) {
+               Xen child = opened.xen.children.get(opened.next++);
+               if (open(child, sb, opened.childIndent))
+                  stack.push(new Opened(child, opened.childIndent, indentPerLevel));
+            }
+            else {
+               if (opened.xen.text.length() > 0)
+                  sb.append("\n").append(opened.childIndent).append(escape(opened.xen.text));
+
+               sb.append("\n").append(opened.indent);
+               close(opened.xen, sb);
+               stack.pop();
+            }
+         }
+
+         return sb;
+      }
+
+
+      // a Xen whose start tag has been written, and its children before next
+      static final class Opened {
+         final Xen xen;
+         final String indent;
+         final String childIndent;
+         int next = 0;
+
+         Opened(Xen xen, String indent, String indentPerLevel) {
+            this.xen = xen;
+            this.indent = indent;
+            this.childIndent = indent + indentPerLevel;
+         }
+      }
 
+
+      /**
+       * Writes the start tag.  If there are no children, also writes the text and the end tag.
+       * @return true if there are children to be written
+       */
+      protected boolean open(Xen xen, StringBuilder sb, String indent) {
          if (sb.length() > 0)
             sb.append("\n").append(indent);
 
          sb.append("<").append(xen.name);
          for (Map.Entry<String,String> me : xen.attrs.entrySet()) {
-            sb.append(" ").append(me.getKey()).append("=\"").append(escapeXML(me.getValue())).append("\"");
+            sb.append(" ").append(me.getKey()).append("=\"").append(escape(me.getValue())).append("\"");
          }
          sb.append(">");
 
-         if (!xen.children.isEmpty())  {
-            String newIndent = indent + indentPerLevel;
-            for (Xen child : xen.children)
-               convertToXML(child, sb, newIndent);
+         if (!xen.children.isEmpty())
+            return true;
 
-            if (xen.text.length() > 0)
-               sb.append("\n").append(newIndent).append(escapeXML(xen.text));
+         sb.append(escape(xen.text));
+         close(xen, sb);
+         return false;
+      }
 
-            sb.append("\n").append(indent);
+
+      protected void close(Xen xen, StringBuilder sb) {
+         sb.append("<\\").append(xen.name).append(">");
+      }
+
+      protected String escape(String s) {
+         return escapeXML(s, asciiOnly);
+      }
+
+
+      /**
+       * Writes the same XML as convert(), directly as UTF-8 bytes, without building a String first.
+       * Unlike convert(), whose format toString() keeps, end tags are the well-formed &lt;/name&gt;, so the output can be parsed.
+       * If asciiOnly is false, only &lt; &gt; &amp; &quot; and &apos; are escaped, everything else is encoded as is.
+       * @param xen  to be converted to XML
+       * @param out  not closed, you may want to buffer it if you write small Xens
+       */
+      public void writeUTF8(Xen xen, OutputStream out) throws IOException {
+         XenMetrics metrics = XenMetrics.get();
+         long start = metrics.isEnabled() ? System.nanoTime() : 0L;
+
+         Utf8Out utf8 = new Utf8Out(out, asciiOnly);
+         writeUTF8(xen, utf8, initialIndent, true);
+         utf8.flush();
+
+         if (start != 0L)
+            metrics.serialized("ToXML.writeUTF8", System.nanoTime() - start, utf8.total);
+      }
+
+
+      // same layout as convertToXML()
+      private void writeUTF8(Xen xen, Utf8Out utf8, String indent, boolean first) throws IOException {
+         ArrayDeque<Opened> stack = new ArrayDeque<Opened>();
+         if (openUTF8(xen, utf8, indent, first))
+            stack.push(new Opened(xen, indent, indentPerLevel));
+
+         while (!stack.isEmpty()) {
+            Opened opened = stack.peek();
+            if (opened.next < opened.xen.children.size()) {
+               Xen child = opened.xen.children.get(opened.next++);
+               if (openUTF8(child, utf8, opened.childIndent, false))
+                  stack.push(new Opened(child, opened.childIndent, indentPerLevel));
+            }
+            else {
+               closeUTF8(opened, utf8);
+               stack.pop();
+            }
          }
-         else
-            sb.append(escapeXML(xen.text));
+      }
+
+      private static void closeUTF8(Opened opened, Utf8Out utf8) throws IOException {
+         if (opened.xen.text.length() > 0)
+            utf8.raw("\n").raw(opened.childIndent).escaped(opened.xen.text);
+         utf8.raw("\n").raw(opened.indent).raw("</").raw(opened.xen.name).raw(">");
+      }
 
-         sb.append("<\\" + xen.name + ">");
 
+      /**
+       * Parallel version of convert().  The children of xen are split into ranges, each range is converted
+       * into its own buffer by the pool, and the buffers are joined in order.  The result is identical to convert().
+       * Only worthwhile for large trees where xen has many children.
+       * @param xen   to be converted to XML
+       * @param pool  if null, same as convert()
+       * @return StringBuilder
+       */
+      public StringBuilder convert(Xen xen, ForkJoinPool pool) {
+         if ((pool == null) || (xen.children.size() < 2))
+            return convert(xen);
+
+         StringBuilder sb = new StringBuilder();
+         open(xen, sb, initialIndent);   // just the start tag, since there are children
+         final Opened opened = new Opened(xen, initialIndent, indentPerLevel);
+
+         List<ForkJoinTask<StringBuilder>> tasks = new ArrayList<ForkJoinTask<StringBuilder>>();
+         for (final int[] range : ranges(xen.children.size(), pool)) {
+            tasks.add(pool.submit(new RecursiveTask<StringBuilder>() {
+               protected StringBuilder compute() {
+                  StringBuilder part = new StringBuilder();
+                  for (int c = range[0]; c < range[1]; c++)
+                     convertToXML(opened.xen.children.get(c), part, opened.childIndent);
+                  return part;
+               }
+            }));
+         }
+
+         // open() only writes the newline and indent when its StringBuilder isn't empty, so each part lacks the first one
+         for (ForkJoinTask<StringBuilder> task : tasks)
+            sb.append("\n").append(opened.childIndent).append(task.join());
+
+         if (xen.text.length() > 0)
+            sb.append("\n").append(opened.childIndent).append(escape(xen.text));
+         sb.append("\n").append(initialIndent);
+         close(xen, sb);
          return sb;
       }
 
+
       /**
-       * Escapes HTML
-       * Taken from <a href="">https://github.com/leveluplunch/levelup-java-examples/blob/master/src/test/java/com/levelup/java/xml/EscapeXMLAttributes.java</a>
+       * Parallel version of writeUTF8().  Each range of children is encoded into its own buffer by the pool, and the
+       * buffers are written to out in order, each as soon as it and those before it are done.
+       * The bytes are identical to writeUTF8().
+       * @param xen   to be converted to XML
+       * @param out   not closed
+       * @param pool  if null, same as writeUTF8(xen, out)
+       */
+      public void writeUTF8(Xen xen, OutputStream out, ForkJoinPool pool) throws IOException {
+         if ((pool == null) || (xen.children.size() < 2)) {
+            writeUTF8(xen, out);
+            return;
+         }
+
+         Utf8Out utf8 = new Utf8Out(out, asciiOnly);
+         openUTF8(xen, utf8, initialIndent, true);
+         final Opened opened = new Opened(xen, initialIndent, indentPerLevel);
+
+         List<ForkJoinTask<ByteArrayOutputStream>> tasks = new ArrayList<ForkJoinTask<ByteArrayOutputStream>>();
+         for (final int[] range : ranges(xen.children.size(), pool)) {
+            tasks.add(pool.submit(new RecursiveTask<ByteArrayOutputStream>() {
+               protected ByteArrayOutputStream compute() {
+                  ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                  Utf8Out part = new Utf8Out(bytes, asciiOnly);
+                  try {
+                     for (int c = range[0]; c < range[1]; c++)
+                        writeUTF8(opened.xen.children.get(c), part, opened.childIndent, c == range[0]);
+                     part.drain();
+                  }
+                  catch (IOException ioe) {
+                     throw new IllegalStateException(ioe);   // can't happen with a ByteArrayOutputStream
+                  }
+                  return bytes;
+               }
+            }));
+         }
+
+         for (ForkJoinTask<ByteArrayOutputStream> task : tasks) {
+            utf8.raw("\n").raw(opened.childIndent).drain();
+            task.join().writeTo(out);
+         }
+
+         closeUTF8(opened, utf8);
+         utf8.flush();
+      }
+
+
+      // splits count children into about 4 ranges per thread
+      private static List<int[]> ranges(int count, ForkJoinPool pool) {
+         int size = Math.max(1, count / (pool.getParallelism() * 4));
+         List<int[]> ranges = new ArrayList<int[]>();
+         for (int start = 0; start < count; start += size)
+            ranges.add(new int[] { start, Math.min(count, start + size) });
+         return ranges;
+      }
+
+
+      private static boolean openUTF8(Xen xen, Utf8Out utf8, String indent, boolean first) throws IOException {
+         if (!first)
+            utf8.raw("\n").raw(indent);
+         utf8.raw("<").raw(xen.name);
+         for (Map.Entry<String,String> me : xen.attrs.entrySet())
+            utf8.raw(" ").raw(me.getKey()).raw("=\"").escaped(me.getValue()).raw("\"");
+         utf8.raw(">");
+
+         if (!xen.children.isEmpty())
+            return true;
+
+         utf8.escaped(xen.text).raw("</").raw(xen.name).raw(">");
+         return false;
+      }
+
+
+      /**
+       * Escapes XML.  Characters above 0x7e become numeric entities, a surrogate pair becomes one entity.
        * @param xml String
-       * @return escaped String
+       * @return escaped String, xml itself if nothing needed escaping
        */
       public static String escapeXML(String xml) {
-         StringBuilder escapedXML = new StringBuilder();
-         for (int i = 0; i < xml.length(); i++) {
+         return escapeXML(xml, true);
+      }
+
+      /**
+       * Escapes XML
+       * @param xml        String
+       * @param asciiOnly  if true, characters above 0x7e also become numeric entities
+       * @return escaped String, xml itself if nothing needed escaping
+       */
+      public static String escapeXML(String xml, boolean asciiOnly) {
+         int length = xml.length();
+         int i = 0;
+         while ((i < length) && !needsEscape(xml.charAt(i), asciiOnly))   // usually finds nothing
+            i++;
+         if (i == length)
+            return xml;
+
+         StringBuilder escapedXML = new StringBuilder(length + 16);
+         escapedXML.append(xml, 0, i);
+         for (; i < length; i++) {
             char c = xml.charAt(i);
             switch (c) {
                case '<': escapedXML.append("&lt;"); break;
@@ -187,8 +671,11 @@ public interface Converter<FROM, TO> {
                case '&': escapedXML.append("&amp;"); break;
                case '\'': escapedXML.append("&apos;"); break;
                default:
-                  if (c > 0x7e) {
-                     escapedXML.append("&#" + ((int) c) + ";");
+                  if (asciiOnly && (c > 0x7e)) {
+                     int codePoint = xml.codePointAt(i);
+                     if (Character.isSupplementaryCodePoint(codePoint))
+                        i++;
+                     escapedXML.append("&#").append(codePoint).append(';');
                   } else
                      escapedXML.append(c);
             }
@@ -198,6 +685,798 @@ public interface Converter<FROM, TO> {
       }
 
 
+      static boolean needsEscape(char c, boolean asciiOnly) {
+         switch (c) {
+            case '<': case '>': case '"': case '&': case '\'':
+               return true;
+            default:
+               return asciiOnly && (c > 0x7e);
+         }
+      }
+
+
+      /**
+       * Buffered UTF-8 encoding and escaping straight into bytes, one pass with no intermediate Strings.
+       */
+      static final class Utf8Out {
+         final OutputStream out;
+         final boolean asciiOnly;
+         final byte[] buffer = new byte[8192];
+         int count = 0;
+         long total = 0;
+
+         Utf8Out(OutputStream out, boolean asciiOnly) {
+            this.out = out;
+            this.asciiOnly = asciiOnly;
+         }
+
+         // for markup, which needs no escaping
+         Utf8Out raw(String s) throws IOException {
+            return write(s, false);
+         }
+
+         Utf8Out escaped(String s) throws IOException {
+            return write(s, true);
+         }
+
+         private Utf8Out write(String s, boolean escape) throws IOException {
+            byte[] b = buffer;
+            int n = count;
+            int limit = b.length - 12;   // room for the longest entity or a 4 byte character
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+               if (n >= limit) {
+                  count = n;
+                  drain();
+                  n = 0;
+               }
+
+               char c = s.charAt(i);
+               if (c < 0x7f) {
+                  if (escape && SPECIAL[c])
+                     n = ascii(entity(c), n);
+                  else
+                     b[n++] = (byte) c;
+               }
+               else if (asciiOnly && escape) {
+                  int codePoint = s.codePointAt(i);
+                  if (Character.isSupplementaryCodePoint(codePoint))
+                     i++;
+                  b[n++] = '&';
+                  b[n++] = '#';
+                  n = decimal(codePoint, n);
+                  b[n++] = ';';
+               }
+               else if (c < 0x80)
+                  b[n++] = (byte) c;   // DEL
+               else if (c < 0x800) {
+                  b[n++] = (byte) (0xc0 | (c >> 6));
+                  b[n++] = (byte) (0x80 | (c & 0x3f));
+               }
+               else if (!Character.isSurrogate(c)) {
+                  b[n++] = (byte) (0xe0 | (c >> 12));
+                  b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                  b[n++] = (byte) (0x80 | (c & 0x3f));
+               }
+               else if (Character.isHighSurrogate(c) && (i + 1 < length) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                  int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                  b[n++] = (byte) (0xf0 | (codePoint >> 18));
+                  b[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                  b[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                  b[n++] = (byte) (0x80 | (codePoint & 0x3f));
+               }
+               else
+                  b[n++] = '?';   // unpaired, as String.getBytes() does
+            }
+
+            count = n;
+            return this;
+         }
+
+         private static final boolean[] SPECIAL = new boolean[0x80];
+         static {
+            for (char c : "<>&\"'".toCharArray())
+               SPECIAL[c] = true;
+         }
+
+         private static String entity(char c) {
+            switch (c) {
+               case '<': return "&lt;";
+               case '>': return "&gt;";
+               case '&': return "&amp;";
+               case '"': return "&quot;";
+               default: return "&apos;";
+            }
+         }
+
+         private int ascii(String s, int n) {
+            for (int i = 0; i < s.length(); i++)
+               buffer[n++] = (byte) s.charAt(i);
+            return n;
+         }
+
+         // at most 7 digits, since code points are < 0x110000
+         private int decimal(int value, int n) {
+            int digits = 1;
+            for (int v = value; v >= 10; v /= 10)
+               digits++;
+            for (int d = n + digits - 1; d >= n; d--) {
+               buffer[d] = (byte) ('0' + (value % 10));
+               value /= 10;
+            }
+            return n + digits;
+         }
+
+         void drain() throws IOException {
+            out.write(buffer, 0, count);
+            total += count;
+            count = 0;
+         }
+
+         void flush() throws IOException {
+            drain();
+            out.flush();
+         }
+      }
+
+   }
+
+
+   /**
+    * Writes Xens through a javax.xml.stream.XMLStreamWriter, which takes care of escaping and encoding.
+    * Unlike ToXML, no whitespace is added, so the text round-trips exactly.
+    * <b>Note:</b> the JDK's built-in XMLStreamWriter fails on documents more than 32K elements deep.
+    */
+   public static class ToStream implements Converter<Xen, XMLStreamWriter> {
+
+      protected final XMLStreamWriter writer;
+
+      public ToStream(XMLStreamWriter writer) {
+         this.writer = writer;
+      }
+
+
+      /**
+       * Writes a complete document, then flushes.
+       * @param root to be written
+       * @return the writer
+       * @throws IllegalStateException wrapping any XMLStreamException
+       */
+      public XMLStreamWriter convert(Xen root) {
+         try {
+            writer.writeStartDocument();
+            write(root);
+            writer.writeEndDocument();
+            writer.flush();
+            return writer;
+         }
+         catch (XMLStreamException xse) {
+            throw new IllegalStateException(xse);
+         }
+      }
+
+
+      /**
+       * Writes xen and its descendants, but no document start or end, e.g. to add it to a larger stream
+       * @param xen  to be written
+       * @throws XMLStreamException
+       */
+      public void write(Xen xen) throws XMLStreamException {
+         ArrayDeque<Iterator<Xen>> stack = new ArrayDeque<Iterator<Xen>>();
+         if (open(xen))
+            stack.push(xen.children.iterator());
+
+         while (!stack.isEmpty()) {
+            Iterator<Xen> remaining = stack.peek();
+            if (remaining.hasNext()) {
+               Xen child = remaining.next();
+               if (open(child))
+                  stack.push(child.children.iterator());
+            }
+            else {
+               writer.writeEndElement();
+               stack.pop();
+            }
+         }
+      }
+
+
+      /**
+       * Writes the start tag, attributes and text, like ToDocument the text comes before the children
+       * @return true if xen has children, in which case the element is still open
+       */
+      protected boolean open(Xen xen) throws XMLStreamException {
+         boolean hasChildren = !xen.children.isEmpty();
+         if (hasChildren || (xen.text.length() > 0))
+            writer.writeStartElement(xen.name);
+         else
+            writer.writeEmptyElement(xen.name);
+
+         for (Map.Entry<String,String> attr : xen.attrs.entrySet())
+            writer.writeAttribute(attr.getKey(), attr.getValue());
+
+         if (xen.text.length() > 0) {
+            writer.writeCharacters(xen.text);
+            if (!hasChildren)
+               writer.writeEndElement();
+         }
+
+         return hasChildren;
+      }
+
+   }
+
+
+
+   /**
+    * Writes JSON, streaming, with this mapping (which FromJSON reverses):
+    * <ul>
+    * <li>the document is an object with one member, named for the root
+    * <li>a Xen with no attributes or children is just its text, e.g. "title": "Everyday Italian"
+    * <li>otherwise it is an object: attributes are members named "@" + name, the text (if any) is "#text",
+    *     then each child is a member named for the child
+    * <li>consecutive children with the same name are collected into an array
+    * <li>if a name reappears after a different one, all the children are instead written in order as "#children",
+    *     an array of objects with one member each, so that the order is kept
+    * </ul>
+    * e.g. &lt;book category="WEB"&gt;&lt;title&gt;T&lt;/title&gt;&lt;author&gt;A&lt;/author&gt;&lt;author&gt;B&lt;/author&gt;&lt;/book&gt; becomes
+    * {"book":{"@category":"WEB","title":"T","author":["A","B"]}}, and &lt;r&gt;&lt;a&gt;1&lt;/a&gt;&lt;b&gt;2&lt;/b&gt;&lt;a&gt;3&lt;/a&gt;&lt;/r&gt;
+    * becomes {"r":{"#children":[{"a":"1"},{"b":"2"},{"a":"3"}]}}
+    *
+    * Everything is a string, and there is no whitespace.  Deep trees are fine.
+    */
+   public static class ToJSON implements Converter<Xen, Writer> {
+
+      protected final Writer out;
+      private final char[] buffer = new char[8192];
+      private int buffered = 0;
+
+      public ToJSON(Writer out) {
+         this.out = out;
+      }
+
+      /**
+       * Writes UTF-8
+       */
+      public ToJSON(OutputStream out) {
+         this(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+      }
+
+
+      /**
+       * Writes root as a complete JSON document, then flushes
+       * @return the Writer
+       * @throws IllegalStateException wrapping any IOException
+       */
+      public Writer convert(Xen root) {
+         try {
+            write(root);
+            return out;
+         }
+         catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+         }
+      }
+
+
+      /**
+       * Writes root as a complete JSON document, then flushes
+       */
+      public void write(Xen root) throws IOException {
+         write('{');
+         string(root.name);
+         write(':');
+
+         // each open object, with its children grouped by name.  group is the next group, member is the next in it
+         ArrayDeque<Opened> stack = new ArrayDeque<Opened>();
+         if (isSimple(root))
+            string(root.text);
+         else
+            stack.push(open(root, false));
+
+         while (!stack.isEmpty()) {
+            Opened opened = stack.peek();
+            if (opened.member == 0) {
+               if (opened.group == opened.groups.size()) {
+                  write('}');
+                  if (stack.pop().wrapped)
+                     write('}');
+                  continue;
+               }
+               List<Xen> group = opened.groups.get(opened.group);
+               if (opened.written++ > 0)
+                  write(',');
+               if (opened.ordered)
+                  write("\"#children\":[");
+               else {
+                  string(group.get(0).name);
+                  write(':');
+                  if (group.size() > 1)
+                     write('[');
+               }
+            }
+
+            List<Xen> group = opened.groups.get(opened.group);
+            if (opened.member < group.size()) {
+               Xen child = group.get(opened.member++);
+               if (opened.member > 1)
+                  write(',');
+               if (opened.ordered) {
+                  write('{');
+                  string(child.name);
+                  write(':');
+               }
+               if (!isSimple(child))
+                  stack.push(open(child, opened.ordered));
+               else {
+                  string(child.text);
+                  if (opened.ordered)
+                     write('}');
+               }
+            }
+            else {
+               if (opened.ordered || (group.size() > 1))
+                  write(']');
+               opened.group++;
+               opened.member = 0;
+            }
+         }
+
+         write('}');
+         flush();
+      }
+
+
+      // an object which has been started
+      static final class Opened {
+         final List<List<Xen>> groups;
+         final boolean ordered;   // groups is all the children, written as "#children"
+         final boolean wrapped;   // this is inside a one member object in its parent's "#children"
+         int group = 0;
+         int member = 0;
+         int written;  // members so far, for the commas
+
+         Opened(List<List<Xen>> groups, boolean ordered, boolean wrapped, int written) {
+            this.groups = groups;
+            this.ordered = ordered;
+            this.wrapped = wrapped;
+            this.written = written;
+         }
+      }
+
+      static boolean isSimple(Xen xen) {
+         return xen.attrs.isEmpty() && xen.children.isEmpty();
+      }
+
+
+      // writes the attributes and text
+      private Opened open(Xen xen, boolean wrapped) throws IOException {
+         write('{');
+         int written = 0;
+         for (Map.Entry<String, String> attr : xen.attrs.entrySet()) {
+            if (written++ > 0)
+               write(',');
+            write('"');
+            write('@');
+            escape(attr.getKey());
+            write('"');
+            write(':');
+            string(attr.getValue());
+         }
+         if (xen.text.length() > 0) {
+            if (written++ > 0)
+               write(',');
+            write("\"#text\":");
+            string(xen.text);
+         }
+
+         List<List<Xen>> groups = groups(xen.children);
+         if (groups != null)
+            return new Opened(groups, false, wrapped, written);
+         return new Opened(Collections.singletonList(xen.children), true, wrapped, written);
+      }
+
+
+      // runs of children with the same name, null if a name reappears after a different one.  Only allocates a Map if the names are mixed
+      static List<List<Xen>> groups(List<Xen> children) {
+         if (children.isEmpty())
+            return Collections.emptyList();
+
+         String name = children.get(0).name;
+         boolean allSame = true;
+         for (int i = 1; (i < children.size()) && allSame; i++)
+            allSame = name.equals(children.get(i).name);
+         if (allSame)
+            return Collections.singletonList(children);
+
+         Map<String, List<Xen>> byName = new LinkedHashMap<String, List<Xen>>();
+         List<Xen> group = null;
+         for (Xen child : children) {
+            if ((group == null) || !group.get(0).name.equals(child.name)) {
+               if (byName.containsKey(child.name))
+                  return null;
+               byName.put(child.name, group = new ArrayList<Xen>(1));
+            }
+            group.add(child);
+         }
+         return new ArrayList<List<Xen>>(byName.values());
+      }
+
+
+      public void flush() throws IOException {
+         out.write(buffer, 0, buffered);
+         buffered = 0;
+         out.flush();
+      }
+
+      private void write(char c) throws IOException {
+         if (buffered == buffer.length) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+         }
+         buffer[buffered++] = c;
+      }
+
+      private void write(String s) throws IOException {
+         for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+      }
+
+      private void string(String s) throws IOException {
+         write('"');
+         escape(s);
+         write('"');
+      }
+
+      // as required by RFC 8259, plus U+2028 and U+2029, which break JavaScript
+      private void escape(String s) throws IOException {
+         for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= ' ') && (c != '"') && (c != '\\') && (c != '\u2028') && (c != '\u2029')) {
+               write(c);
+               continue;
+            }
+            write('\\');
+            switch (c) {
+               case '"': write('"'); break;
+               case '\\': write('\\'); break;
+               case '\n': write('n'); break;
+               case '\r': write('r'); break;
+               case '\t': write('t'); break;
+               default:
+                  write('u');
+                  for (int shift = 12; shift >= 0; shift -= 4)
+                     write(HEX[(c >> shift) & 0xf]);
+            }
+         }
+      }
+
+      private static final char[] HEX = "0123456789abcdef".toCharArray();
+   }
+
+
+
+   /**
+    * Reads JSON into a tree of Xens, reversing the mapping of ToJSON:
+    * <ul>
+    * <li>the document must be an object with one member, which becomes the root
+    * <li>a member named "@" + name becomes an attribute, "#text" becomes the text
+    * <li>any other member becomes a child of that name, an array becomes several children of that name
+    * <li>"#children" must be an array of objects with one member each, which become children in that order
+    * <li>strings, numbers, true and false become text, null becomes ""
+    * </ul>
+    * The JSON is tokenized as it is read, no other object model is built.  Deep documents are fine.
+    * Not thread-safe, but may be reused.
+    */
+   public static class FromJSON implements Converter<Reader, Xen> {
+
+      private final char[] buffer = new char[8192];
+      private int pos;
+      private int limit;
+      private long consumed;  // chars before buffer[0], for error messages
+      private Reader in;
+      private final StringBuilder sb = new StringBuilder();
+      private final Map<String, String> names = new HashMap<String, String>();  // so each name is one String
+
+
+      /**
+       * @param reader  JSON, not closed
+       * @throws IllegalStateException wrapping any IOException, including malformed JSON
+       */
+      public Xen convert(Reader reader) {
+         try {
+            return read(reader);
+         }
+         catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+         }
+      }
+
+      public Xen parseText(String json) throws IOException {
+         return read(new StringReader(json));
+      }
+
+
+      /**
+       * @param reader  JSON, not closed.  Need not be buffered.
+       * @return root
+       * @throws IOException from the reader, or a MalformedJSONException if the JSON is malformed or cannot be mapped
+       */
+      public Xen read(Reader reader) throws IOException {
+         in = reader;
+         pos = limit = 0;
+         consumed = 0;
+         names.clear();
+         try {
+            return readDocument();
+         }
+         finally {
+            in = null;
+            names.clear();
+         }
+      }
+
+
+      // an object or array being read.  For an array, or an object in "#children", xen is the parent of the children it creates
+      static final class Frame {
+         final Xen xen;
+         final String arrayName;  // null for an object, CHILDREN for "#children"
+         final boolean wrapper;   // an object in "#children", whose one member is a child of xen
+         boolean first = true;
+
+         Frame(Xen xen, String arrayName, boolean wrapper) {
+            this.xen = xen;
+            this.arrayName = arrayName;
+            this.wrapper = wrapper;
+         }
+      }
+
+      static final String CHILDREN = "#children";
+
+
+      private Xen readDocument() throws IOException {
+         if (next() != '{')
+            throw error("expected {");
+
+         Xen[] root = new Xen[1];
+         ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+         stack.push(new Frame(null, null, false));   // the document
+         while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            int c = next();
+            char close = (frame.arrayName == null) ? '}' : ']';
+            if (c == close) {
+               stack.pop();
+               continue;
+            }
+            if (!frame.first) {
+               if (frame.wrapper)
+                  throw error("expected } after the one member of an object in #children");
+               if (c != ',')
+                  throw error("expected , or " + close);
+               c = next();
+            }
+            frame.first = false;
+
+            if (CHILDREN.equals(frame.arrayName)) {
+               if (c != '{')
+                  throw error("expected an object in #children");
+               stack.push(new Frame(frame.xen, null, true));
+               continue;
+            }
+            if (frame.arrayName != null) {
+               if (c == '[')
+                  throw error("arrays of arrays cannot be mapped");
+               value(frame.xen, frame.arrayName, c, stack, root);
+               continue;
+            }
+
+            if (c != '"')
+               throw error("expected a name");
+            String name = name(string());
+            if (next() != ':')
+               throw error("expected :");
+            c = next();
+
+            if (frame.xen == null) {
+               if ((root[0] != null) || (c == '['))
+                  throw error("only one root is allowed");
+               value(null, name, c, stack, root);
+            }
+            else if (frame.wrapper) {
+               if (name.startsWith(Xpath.ATTRIBUTE) || name.startsWith("#"))
+                  throw error("expected a child name in #children");
+               value(frame.xen, name, c, stack, root);
+            }
+            else if (name.startsWith(Xpath.ATTRIBUTE)) {
+               if (frame.xen.attrs == Xen.NO_ATTRS)
+                  frame.xen.attrs = new LinkedHashMap<String, String>(4);
+               frame.xen.attrs.put(name(name.substring(1)), primitive(c));
+            }
+            else if ("#text".equals(name))
+               frame.xen.text = primitive(c);
+            else if (CHILDREN.equals(name)) {
+               if (c != '[')
+                  throw error("expected an array for #children");
+               stack.push(new Frame(frame.xen, CHILDREN, false));
+            }
+            else
+               value(frame.xen, name, c, stack, root);
+         }
+
+         if (next() != -1)
+            throw error("expected the end");
+         if (root[0] == null)
+            throw error("no root");
+         return root[0];
+      }
+
+
+      // the value for a child named name, starting with c
+      private void value(Xen parent, String name, int c, ArrayDeque<Frame> stack, Xen[] root) throws IOException {
+         if (c == '[') {
+            stack.push(new Frame(parent, name, false));
+            return;
+         }
+
+         Xen xen = new Xen(name, null);
+         if (parent == null)
+            root[0] = xen;
+         else
+            parent.appendNew(xen);
+
+         if (c == '{')
+            stack.push(new Frame(xen, null, false));
+         else
+            xen.text = primitive(c);
+      }
+
+
+      private String name(String s) {
+         String name = names.get(s);
+         if (name == null)
+            names.put(s, name = s);
+         return name;
+      }
+
+
+      // a string, number, true, false or null, starting with c
+      private String primitive(int c) throws IOException {
+         if (c == '"')
+            return string();
+         if ((c != '-') && ((c < '0') || (c > '9')) && (c != 't') && (c != 'f') && (c != 'n'))
+            throw error("expected a value");
+
+         sb.setLength(0);
+         sb.append((char) c);
+         while (true) {
+            if ((pos == limit) && !fill())
+               break;
+            char ch = buffer[pos];
+            if ((ch == ',') || (ch == '}') || (ch == ']') || Character.isWhitespace(ch))
+               break;
+            sb.append(ch);
+            pos++;
+         }
+
+         String literal = sb.toString();
+         if ("null".equals(literal))
+            return "";
+         if (!"true".equals(literal) && !"false".equals(literal) && !isNumber(literal))
+            throw error("unexpected " + literal);
+         return literal;
+      }
+
+      private static boolean isNumber(String s) {
+         int i = (s.charAt(0) == '-') ? 1 : 0;
+         if ((i == s.length()) || (s.charAt(i) < '0') || (s.charAt(i) > '9'))
+            return false;
+         for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (((c < '0') || (c > '9')) && (c != '.') && (c != 'e') && (c != 'E') && (c != '+') && (c != '-'))
+               return false;
+         }
+         return true;
+      }
+
+
+      // the rest of a string, after the opening quote
+      private String string() throws IOException {
+         // fast path, the whole string is in the buffer, without escapes
+         for (int i = pos; i < limit; i++) {
+            char c = buffer[i];
+            if (c == '"') {
+               String s = new String(buffer, pos, i - pos);
+               pos = i + 1;
+               return s;
+            }
+            if (c == '\\')
+               break;
+         }
+
+         sb.setLength(0);
+         while (true) {
+            if ((pos == limit) && !fill())
+               throw error("unterminated string");
+            char c = buffer[pos++];
+            if (c == '"')
+               return sb.toString();
+            if (c != '\\') {
+               sb.append(c);
+               continue;
+            }
+
+            if ((pos == limit) && !fill())
+               throw error("unterminated string");
+            c = buffer[pos++];
+            switch (c) {
+               case 'b': sb.append('\b'); break;
+               case 'f': sb.append('\f'); break;
+               case 'n': sb.append('\n'); break;
+               case 'r': sb.append('\r'); break;
+               case 't': sb.append('\t'); break;
+               case 'u':
+                  int code = 0;
+                  for (int i = 0; i < 4; i++) {
+                     if ((pos == limit) && !fill())
+                        throw error("unterminated string");
+                     int digit = Character.digit(buffer[pos++], 16);
+                     if (digit < 0)
+                        throw error("bad \\u escape");
+                     code = (code << 4) | digit;
+                  }
+                  sb.append((char) code);
+                  break;
+               default: sb.append(c);   // " \ and /
+            }
+         }
+      }
+
+
+      // the next char which is not whitespace, -1 at the end
+      private int next() throws IOException {
+         while (true) {
+            if ((pos == limit) && !fill())
+               return -1;
+            char c = buffer[pos++];
+            if ((c != ' ') && (c != '\n') && (c != '\r') && (c != '\t'))
+               return c;
+         }
+      }
+
+      private boolean fill() throws IOException {
+         consumed += limit;
+         pos = limit = 0;
+         int read = in.read(buffer, 0, buffer.length);
+         if (read <= 0)
+            return false;
+         limit = read;
+         return true;
+      }
+
+      private MalformedJSONException error(String message) {
+         return new MalformedJSONException(message, consumed + pos);
+      }
+
+
+      /**
+       * Thrown when the JSON is malformed, or cannot be mapped to Xens, e.g. an array of arrays
+       */
+      public static class MalformedJSONException extends IOException {
+         private static final long serialVersionUID = 1L;
+
+         protected final long position;
+
+         public MalformedJSONException(String message, long position) {
+            super("malformed JSON, " + message + " at char " + position);
+            this.position = position;
+         }
+
+         /**
+          * @return  number of chars read before the problem was found
+          */
+         public long getPosition() { return position; }
+      }
    }
 
 }
@@ -0,0 +1,629 @@
+package com.flyingspaniel.xen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiles a W3C-style predicate expression, e.g. <code>price&gt;35 and not(@sale)</code>, into a XenPredicate.Filter.
+ * Used by Xpath for anything richer than the simple predicates it handles itself.
+ *
+ * <pre>
+ *    or  and  not()                 short-circuiting
+ *    =  !=  &lt;  &lt;=  &gt;  &gt;=  ~         comparisons as per W3C ("existential" for paths), ~ is a regular expression
+ *    +  -                           arithmetic
+ *    'string'  "string"  123  1.5   literals
+ *    .  text()  @a  name  a/b  ..   relative paths, their value is the text() of the Xen(s)
+ *    position()  last()  count(path)  number(x)  string(x)  boolean(x)  string-length(x)
+ *    starts-with(x,y)  contains(x,y)  true()  false()
+ * </pre>
+ * As per W3C, if the whole expression is a number it is true if it equals position().
+ * Note that position() is always 1-based, even in a Groovy style path.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+final class PredicateCompiler {
+
+   private final String source;
+   private final List<String> tokens;
+   private int next = 0;
+
+
+   private PredicateCompiler(String source) {
+      this.source = source;
+      this.tokens = tokenize(source);
+   }
+
+
+   /**
+    * Compile a predicate
+    * @param expression  the inside of the [ ], e.g.  "price&gt;35"
+    * @return Filter
+    * @throws IllegalArgumentException if the expression cannot be parsed
+    */
+   static XenPredicate.Filter compile(String expression) {
+      PredicateCompiler compiler = new PredicateCompiler(expression);
+      Expr expr = compiler.parseOr();
+      if (compiler.next < compiler.tokens.size())
+         throw compiler.error("Unexpected " + compiler.tokens.get(compiler.next));
+
+      return new Compiled(expression, expr);
+   }
+
+
+   /**
+    * The compiled Filter
+    */
+   static class Compiled extends XenPredicate.Filter {
+      final String source;
+      final Expr expr;
+      final int maxPosition;
+      final boolean usesSize;
+      final boolean isLocal;
+
+      Compiled(String source, Expr expr) {
+         this.source = source;
+         this.expr = expr;
+         this.usesSize = expr.usesSize();
+         this.isLocal = expr.isLocal();
+
+         // a bare number means position() = number
+         if ((expr instanceof Literal) && (((Literal) expr).value instanceof Double))
+            this.maxPosition = Binary.positionBound("=", (Double) ((Literal) expr).value);
+         else
+            this.maxPosition = expr.maxPosition();
+      }
+
+      public boolean accept(Xen xen, int position, int size) {
+         Object result = expr.eval(xen, position, size);
+         if (result instanceof Double)
+            return ((Double) result) == position;
+
+         return toBoolean(result);
+      }
+
+      @Override
+      public int maxPosition() { return maxPosition; }
+
+      @Override
+      public boolean usesSize() { return usesSize; }
+
+      @Override
+      public boolean isLocal() { return isLocal; }
+
+      @Override
+      public String toString() { return "[" + source + "]"; }
+   }
+
+
+
+   /*
+      Values are a Double, String, Boolean, or a List<Xen> (for paths)
+    */
+
+   static abstract class Expr {
+      abstract Object eval(Xen xen, int position, int size);
+
+      // no position beyond this can make us true
+      int maxPosition() { return Integer.MAX_VALUE; }
+
+      boolean usesSize() { return false; }
+
+      // false if some path climbs out of the candidate, e.g. ../@flag
+      boolean isLocal() { return true; }
+   }
+
+
+   static class Literal extends Expr {
+      final Object value;
+
+      Literal(Object value) { this.value = value; }
+
+      Object eval(Xen xen, int position, int size) { return value; }
+   }
+
+
+   static class Path extends Expr {
+      final Xpath xpath;
+      final boolean isCurrent;
+
+      Path(String path) {
+         this.xpath = new Xpath(path);
+         this.isCurrent = Xpath.CURRENT.equals(path);
+      }
+
+      Object eval(Xen xen, int position, int size) {
+         if (isCurrent)
+            return Collections.singletonList(xen);
+
+         List<Xen> matches = new ArrayList<Xen>();
+         xpath.evaluate(xen, 0, Integer.MAX_VALUE, matches);   // part of the outer evaluation, so not counted by XenMetrics
+         return matches;
+      }
+
+      @Override
+      boolean isLocal() { return xpath.isLocal(); }
+   }
+
+
+   static class Position extends Expr {
+      Object eval(Xen xen, int position, int size) { return (double) position; }
+   }
+
+
+   static class Last extends Expr {
+      Object eval(Xen xen, int position, int size) { return (double) size; }
+
+      @Override
+      boolean usesSize() { return true; }
+   }
+
+
+   static class Negate extends Expr {
+      final Expr operand;
+
+      Negate(Expr operand) { this.operand = operand; }
+
+      Object eval(Xen xen, int position, int size) { return -toNumber(operand.eval(xen, position, size)); }
+
+      @Override
+      boolean usesSize() { return operand.usesSize(); }
+
+      @Override
+      boolean isLocal() { return operand.isLocal(); }
+   }
+
+
+   static class Function extends Expr {
+      final String name;
+      final Expr[] args;
+
+      Function(String name, Expr[] args) {
+         this.name = name;
+         this.args = args;
+      }
+
+      Object eval(Xen xen, int position, int size) {
+         if ("true".equals(name))
+            return Boolean.TRUE;
+         if ("false".equals(name))
+            return Boolean.FALSE;
+
+         Object arg0 = args[0].eval(xen, position, size);
+         if ("not".equals(name))
+            return !toBoolean(arg0);
+         if ("boolean".equals(name))
+            return toBoolean(arg0);
+         if ("number".equals(name))
+            return toNumber(arg0);
+         if ("string".equals(name))
+            return toStringValue(arg0);
+         if ("string-length".equals(name))
+            return (double) toStringValue(arg0).length();
+         if ("count".equals(name))
+            return (double) ((List<?>) arg0).size();
+
+         String s1 = toStringValue(args[1].eval(xen, position, size));
+         if ("starts-with".equals(name))
+            return toStringValue(arg0).startsWith(s1);
+         else // contains
+            return toStringValue(arg0).contains(s1);
+      }
+
+      @Override
+      boolean usesSize() {
+         for (Expr arg : args)
+            if (arg.usesSize())
+               return true;
+         return false;
+      }
+
+      @Override
+      boolean isLocal() {
+         for (Expr arg : args)
+            if (!arg.isLocal())
+               return false;
+         return true;
+      }
+   }
+
+
+   static class Binary extends Expr {
+      final String op;
+      final Expr left;
+      final Expr right;
+
+      Binary(String op, Expr left, Expr right) {
+         this.op = op;
+         this.left = left;
+         this.right = right;
+      }
+
+      Object eval(Xen xen, int position, int size) {
+         if ("and".equals(op))
+            return toBoolean(left.eval(xen, position, size)) && toBoolean(right.eval(xen, position, size));
+         if ("or".equals(op))
+            return toBoolean(left.eval(xen, position, size)) || toBoolean(right.eval(xen, position, size));
+
+         Object l = left.eval(xen, position, size);
+         Object r = right.eval(xen, position, size);
+         if ("+".equals(op))
+            return toNumber(l) + toNumber(r);
+         if ("-".equals(op))
+            return toNumber(l) - toNumber(r);
+
+         return compare(op, l, r);
+      }
+
+      @Override
+      int maxPosition() {
+         if ("and".equals(op))
+            return Math.min(left.maxPosition(), right.maxPosition());
+         if ("or".equals(op))
+            return Math.max(left.maxPosition(), right.maxPosition());
+
+         // look for position() compared to a number
+         if ((left instanceof Position) && (right instanceof Literal) && (((Literal) right).value instanceof Double))
+            return positionBound(op, (Double) ((Literal) right).value);
+         if ((right instanceof Position) && (left instanceof Literal) && (((Literal) left).value instanceof Double))
+            return positionBound(flip(op), (Double) ((Literal) left).value);
+
+         return Integer.MAX_VALUE;
+      }
+
+      @Override
+      boolean usesSize() {
+         return left.usesSize() || right.usesSize();
+      }
+
+      @Override
+      boolean isLocal() {
+         return left.isLocal() && right.isLocal();
+      }
+
+      static int positionBound(String op, double n) {
+         if ("=".equals(op) || "<=".equals(op))
+            return (int) Math.max(0, Math.floor(n));
+         if ("<".equals(op))
+            return (int) Math.max(0, Math.ceil(n) - 1);
+         return Integer.MAX_VALUE;
+      }
+
+      static String flip(String op) {
+         if (op.startsWith("<"))
+            return ">" + op.substring(1);
+         if (op.startsWith(">"))
+            return "<" + op.substring(1);
+         return op;
+      }
+   }
+
+
+
+   /*
+      Conversions and comparisons, as per W3C XPath 1.0
+    */
+
+   @SuppressWarnings("unchecked")
+   static boolean compare(String op, Object l, Object r) {
+      if (l instanceof List) {
+         for (Xen xen : (List<Xen>) l)
+            if (compare(op, xen.text, r))
+               return true;
+         return false;
+      }
+      if (r instanceof List) {
+         for (Xen xen : (List<Xen>) r)
+            if (compare(op, l, xen.text))
+               return true;
+         return false;
+      }
+
+      if ("~".equals(op))
+         return XenPredicate.Matches.compile(toStringValue(r)).matcher(toStringValue(l)).matches();
+
+      if ("=".equals(op) || "!=".equals(op)) {
+         boolean equal;
+         if ((l instanceof Boolean) || (r instanceof Boolean))
+            equal = toBoolean(l) == toBoolean(r);
+         else if ((l instanceof Double) || (r instanceof Double))
+            equal = toNumber(l) == toNumber(r);
+         else
+            equal = l.equals(r);
+         return "=".equals(op) == equal;
+      }
+
+      double dl = toNumber(l);
+      double dr = toNumber(r);
+      if ("<".equals(op))
+         return dl < dr;
+      if ("<=".equals(op))
+         return dl <= dr;
+      if (">".equals(op))
+         return dl > dr;
+      else // >=
+         return dl >= dr;
+   }
+
+
+   static boolean toBoolean(Object o) {
+      if (o instanceof Boolean)
+         return (Boolean) o;
+      if (o instanceof Double)
+         return ((Double) o != 0.0) && !((Double) o).isNaN();
+      if (o instanceof String)
+         return ((String) o).length() > 0;
+      return !((List<?>) o).isEmpty();
+   }
+
+
+   static double toNumber(Object o) {
+      if (o instanceof Double)
+         return (Double) o;
+      if (o instanceof Boolean)
+         return ((Boolean) o) ? 1.0 : 0.0;
+
+      try {
+         return Double.parseDouble(toStringValue(o).trim());
+      } catch (NumberFormatException nfe) {
+         return Double.NaN;
+      }
+   }
+
+
+   static String toStringValue(Object o) {
+      if (o instanceof String)
+         return (String) o;
+      if (o instanceof List) {
+         List<?> list = (List<?>) o;
+         return list.isEmpty() ? "" : ((Xen) list.get(0)).text;
+      }
+      if (o instanceof Double) {
+         double d = (Double) o;
+         if ((d == Math.rint(d)) && !Double.isInfinite(d))
+            return Long.toString((long) d);
+      }
+      return String.valueOf(o);
+   }
+
+
+
+   /*
+      Recursive descent parser.   or -> and -> equality -> relational -> additive -> unary -> primary
+    */
+
+   private Expr parseOr() {
+      Expr expr = parseAnd();
+      while (accept("or"))
+         expr = new Binary("or", expr, parseAnd());
+      return expr;
+   }
+
+   private Expr parseAnd() {
+      Expr expr = parseEquality();
+      while (accept("and"))
+         expr = new Binary("and", expr, parseEquality());
+      return expr;
+   }
+
+   private Expr parseEquality() {
+      Expr expr = parseRelational();
+      for (String op = peek(); "=".equals(op) || "!=".equals(op) || "~".equals(op); op = peek()) {
+         next++;
+         expr = new Binary(op, expr, parseRelational());
+      }
+      return expr;
+   }
+
+   private Expr parseRelational() {
+      Expr expr = parseAdditive();
+      for (String op = peek(); "<".equals(op) || "<=".equals(op) || ">".equals(op) || ">=".equals(op); op = peek()) {
+         next++;
+         expr = new Binary(op, expr, parseAdditive());
+      }
+      return expr;
+   }
+
+   private Expr parseAdditive() {
+      Expr expr = parseUnary();
+      for (String op = peek(); "+".equals(op) || "-".equals(op); op = peek()) {
+         next++;
+         expr = new Binary(op, expr, parseUnary());
+      }
+      return expr;
+   }
+
+   private Expr parseUnary() {
+      if (accept("-"))
+         return new Negate(parseUnary());
+      return parsePrimary();
+   }
+
+   private Expr parsePrimary() {
+      String token = peek();
+      if (token == null)
+         throw error("Unexpected end");
+
+      char c = token.charAt(0);
+      if (accept("(")) {
+         Expr expr = parseOr();
+         expect(")");
+         return expr;
+      }
+      if ((c == '\'') || (c == '"')) {
+         next++;
+         return new Literal(token.substring(1, token.length() - 1));
+      }
+      if (Character.isDigit(c) || ((c == '.') && (token.length() > 1) && Character.isDigit(token.charAt(1)))) {
+         next++;
+         return new Literal(Double.valueOf(token));
+      }
+      if (isNameStart(c) && "(".equals(peek(1)) && !"text".equals(token))
+         return parseFunction();
+
+      return parsePath();
+   }
+
+
+   private Expr parseFunction() {
+      String name = tokens.get(next);
+      next += 2;  // name and (
+      List<Expr> args = new ArrayList<Expr>();
+      if (!accept(")")) {
+         do {
+            args.add(parseOr());
+         } while (accept(","));
+         expect(")");
+      }
+
+      int argCount = args.size();
+      if ("position".equals(name) && argCount == 0)
+         return new Position();
+      if ("last".equals(name) && argCount == 0)
+         return new Last();
+      if (("true".equals(name) || "false".equals(name)) && argCount == 0)
+         return new Function(name, new Expr[0]);
+
+      if ("string".equals(name) || "number".equals(name) || "string-length".equals(name)) {
+         if (argCount == 0) {  // as per W3C, means the current node
+            args.add(new Path(Xpath.CURRENT));
+            argCount = 1;
+         }
+      }
+
+      boolean ok;
+      if ("not".equals(name) || "boolean".equals(name) || "number".equals(name) || "string".equals(name) || "string-length".equals(name))
+         ok = (argCount == 1);
+      else if ("count".equals(name))
+         ok = (argCount == 1) && (args.get(0) instanceof Path);
+      else if ("starts-with".equals(name) || "contains".equals(name))
+         ok = (argCount == 2);
+      else
+         throw error("Unknown function " + name + "()");
+
+      if (!ok)
+         throw error("Wrong arguments for " + name + "()");
+
+      return new Function(name, args.toArray(new Expr[argCount]));
+   }
+
+
+   // a relative path, e.g.  .  ..  @a  text()  author  a/b/@c
+   private Expr parsePath() {
+      StringBuilder sb = new StringBuilder();
+      do {
+         String token = peek();
+         if (token == null)
+            throw error("Unexpected end");
+
+         if (sb.length() > 0)
+            sb.append(Xpath.DELIM);
+
+         if ("@".equals(token)) {
+            next++;
+            String name = peek();
+            if ((name == null) || !(isNameStart(name.charAt(0)) || Xpath.WILDCARD.equals(name)))
+               throw error("Expected an attribute name");
+            next++;
+            sb.append(Xpath.ATTRIBUTE).append(name);
+            break;  // attributes are the end of the line
+         }
+         else if ("text".equals(token) && "(".equals(peek(1))) {
+            next++;
+            expect("(");
+            expect(")");
+            sb.append(Xpath.CURRENT);
+         }
+         else if (Xpath.CURRENT.equals(token) || Xpath.PARENT.equals(token) || Xpath.WILDCARD.equals(token) || isNameStart(token.charAt(0))) {
+            next++;
+            sb.append(token);
+         }
+         else
+            throw error("Unexpected " + token);
+
+      } while (accept(Xpath.DELIM));
+
+      return new Path(sb.toString());
+   }
+
+
+
+   /*
+      Tokenizer
+    */
+
+   static List<String> tokenize(String s) {
+      List<String> tokens = new ArrayList<String>();
+      int i = 0;
+      int len = s.length();
+      while (i < len) {
+         char c = s.charAt(i);
+         int start = i;
+         if (Character.isWhitespace(c)) {
+            i++;
+            continue;
+         }
+         else if ((c == '\'') || (c == '"')) {
+            int close = s.indexOf(c, i + 1);
+            if (close < 0)
+               throw new IllegalArgumentException("Unterminated string in predicate [" + s + "]");
+            i = close + 1;
+         }
+         else if (Character.isDigit(c) || ((c == '.') && (i + 1 < len) && Character.isDigit(s.charAt(i + 1)))) {
+            while ((i < len) && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.'))
+               i++;
+         }
+         else if (isNameStart(c)) {
+            while ((i < len) && isNameChar(s.charAt(i)))
+               i++;
+         }
+         else if (s.startsWith(Xpath.PARENT, i) || s.startsWith("!=", i) || s.startsWith("<=", i) || s.startsWith(">=", i)) {
+            i += 2;
+         }
+         else {
+            i++;
+         }
+
+         tokens.add(s.substring(start, i));
+      }
+
+      return tokens;
+   }
+
+   static boolean isNameStart(char c) {
+      return Character.isLetter(c) || (c == '_');
+   }
+
+   static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || (c == '_') || (c == '-') || (c == '.') || (c == ':');
+   }
+
+
+   private String peek() {
+      return peek(0);
+   }
+
+   private String peek(int ahead) {
+      return (next + ahead < tokens.size()) ? tokens.get(next + ahead) : null;
+   }
+
+   private boolean accept(String token) {
+      if (token.equals(peek())) {
+         next++;
+         return true;
+      }
+      return false;
+   }
+
+   private void expect(String token) {
+      if (!accept(token))
+         throw error("Expected " + token);
+   }
+
+   private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " in predicate [" + source + "]");
+   }
+
+}
@@ -1,5 +1,6 @@
 package com.flyingspaniel.xen;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
 
@@ -46,6 +47,7 @@ public class Xen {
    static final Map<String, String> NO_ATTRS = Collections.emptyMap();
    static final Map<String, Object> NO_PROPS = Collections.emptyMap();
    static final List<Xen> NO_CHILDREN = Collections.emptyList();
+   static final Map<String, AttributeIndex> NO_INDEXES = Collections.emptyMap();
 
 
    public final String name;
@@ -56,6 +58,24 @@ public class Xen {
    protected volatile Map<String, String> attrs;
    protected volatile List<Xen> children;
    protected volatile Map<String, Object> userProperties;
+   protected volatile Map<String, AttributeIndex> indexes;  // of our children, see createIndex()
+
+   // bumped here, and in all ancestors, whenever this subtree is modified via our API.  See modified()
+   protected volatile long modCount;
+
+   // kept up to date by append(), see adopt()
+   protected Xen root;
+   protected int depth;
+
+   // cached, valid while root.modCount == pathStamp.  See absolutePath()
+   private String absolutePath;
+   private long pathStamp;
+   private int siblingIndex;  // 1-based among siblings of the same name, 0 if the name is unique
+   private long siblingStamp = -1;
+
+   // cached, valid while modCount == hashStamp.  See structuralHash()
+   private long structuralHash;
+   private long hashStamp = -1;
 
 
    /**
@@ -67,9 +87,12 @@ public class Xen {
    public Xen(String name, Xen parent, String text) {
       this.name = name;
       this.parent = parent;
+      this.root = (parent != null) ? parent.root : this;
+      this.depth = (parent != null) ? parent.depth + 1 : 0;
       attrs = NO_ATTRS;
       children = NO_CHILDREN;
       userProperties = NO_PROPS;
+      indexes = NO_INDEXES;
       this.text = text != null ? text : "";
       isAttrMock = name.startsWith(Xpath.ATTRIBUTE);
    }
@@ -95,10 +118,16 @@ public class Xen {
     * @return root element (should never be null)
     */
    public Xen rootElement() {
-      if (parent != null)
-         return parent.rootElement();
+      return root;
+   }
 
-      return this;
+
+   /**
+    * How far we are below our rootElement()
+    * @return 0 for the root
+    */
+   public int depth() {
+      return depth;
    }
 
 
@@ -135,12 +164,13 @@ public class Xen {
     * @return may be null if none found
     */
    public synchronized Object userProperty(String name) {
-      if (userProperties.containsKey(name))
-         return userProperties.get(name);
-      else if (parent != null)
-         return parent.userProperty(name);
-      else
-         return null;
+      for (Xen xen = this; xen != null; xen = xen.parent) {
+         Map<String, Object> props = xen.userProperties;
+         if (props.containsKey(name))
+            return props.get(name);
+      }
+
+      return null;
    }
 
    /**
@@ -185,13 +215,34 @@ public class Xen {
     * @return never null
     */
    public String getTextContent(String delimiter) {
-      StringBuilder sb = new StringBuilder();
-      sb.append(text);
-      for (Xen xen : this.breadthFirst()) {
-         sb.append(delimiter).append(xen.text);
+      // one pass, sized from the first level, which StringBuilder grows from if the text is deeper
+      int length = text.length();
+      for (Xen child : children)
+         length += delimiter.length() + child.text.length();
+
+      try {
+         return appendTextContent(new StringBuilder(length), delimiter).toString();
+      } catch (IOException ioe) {
+         throw new IllegalStateException(ioe);  // StringBuilder never throws
       }
+   }
+
+
+   /**
+    * Streams the text from this Xen, plus all children, breadth first, into out.
+    * Useful for large documents, to avoid building a huge String.
+    * @param out        where the text goes
+    * @param delimiter  written between the text of each Xen, use "" to mimic org.w3c.dom.getTextContent
+    * @return out
+    * @throws IOException  if out does
+    */
+   public <A extends Appendable> A appendTextContent(A out, String delimiter) throws IOException {
+      Iterator<Xen> it = breadthFirstIterator();
+      out.append(it.next().text);  // this
+      while (it.hasNext())
+         out.append(delimiter).append(it.next().text);
 
-      return sb.toString();
+      return out;
    }
 
    /**
@@ -215,7 +266,7 @@ public class Xen {
          return this.text;
 
       Xpath xpath = new Xpath(path);
-      List<Xen> matches = xpath.evaluate(this);
+      List<Xen> matches = xpath.evaluate(this, 0, 2);  // 2 is enough to know if there are many
       if (matches.size() == 0)
          return null;
 
@@ -230,8 +281,10 @@ public class Xen {
     * @return this
     */
    public Xen setText(Object text) {
-      if (text != null)
+      if (text != null) {
          this.text = text.toString();
+         modified();
+      }
 
       return this;
    }
@@ -270,32 +323,66 @@ public class Xen {
 
       attributes();  // prepare for modification
       for (int i = 0; i < pairs.length; i += 2) {
-         attrs.put(pairs[i].toString(), pairs[i + 1].toString());
+         String name = pairs[i].toString();
+         String value = pairs[i + 1].toString();
+         String oldValue = attrs.put(name, value);
+         if ((parent != null) && (parent.indexes != NO_INDEXES))
+            for (AttributeIndex index : parent.indexes.values())
+               index.changed(this, name, oldValue, value);
       }
 
+      modified();
       return this;
    }
 
 
    /**
-    * Clears any old attributes and sets them
-    * @param inAttrs may be null
+    * Removes attributes, keeping any AttributeIndexes up to date
+    * Use instead of attributes().remove(name), which is not tracked
+    * @param names  0 or more, missing ones are ignored
     * @return this
     */
-   public Xen setAttributes(Attributes inAttrs) {
-      this.attrs = NO_ATTRS;  // clear out the old
-      if ((inAttrs == null) || inAttrs.getLength() == 0)
+   public Xen removeAttributes(String... names) {
+      if ((names.length == 0) || attrs.isEmpty())
          return this;
 
       attributes();  // prepare for modification
-      for (int i = 0; i < inAttrs.getLength(); i++) {
-         String name = inAttrs.getLocalName(i);
-         if (name.length() == 0)
-            name = inAttrs.getQName(i);
+      for (String name : names) {
+         String oldValue = attrs.remove(name);
+         if ((oldValue != null) && (parent != null) && (parent.indexes != NO_INDEXES))
+            for (AttributeIndex index : parent.indexes.values())
+               index.changed(this, name, oldValue, null);
+      }
+
+      modified();
+      return this;
+   }
 
-         attrs.put(name, inAttrs.getValue(i));
+
+   /**
+    * Clears any old attributes and sets them
+    * @param inAttrs may be null
+    * @return this
+    */
+   public Xen setAttributes(Attributes inAttrs) {
+      Map<String, String> oldAttrs = this.attrs;
+      this.attrs = NO_ATTRS;  // clear out the old
+      modified();
+      if ((inAttrs != null) && inAttrs.getLength() > 0) {
+         attributes();  // prepare for modification
+         for (int i = 0; i < inAttrs.getLength(); i++) {
+            String name = inAttrs.getLocalName(i);
+            if (name.length() == 0)
+               name = inAttrs.getQName(i);
+
+            attrs.put(name, inAttrs.getValue(i));
+         }
       }
 
+      if ((parent != null) && (parent.indexes != NO_INDEXES))
+         for (AttributeIndex index : parent.indexes.values())
+            index.changed(this, index.attributeName, oldAttrs.get(index.attributeName), attrs.get(index.attributeName));
+
       return this;
    }
 
@@ -330,44 +417,197 @@ public class Xen {
    public synchronized Map<String, String> attributes() {
       if ((attrs == NO_ATTRS ) && notAttrMock())
          attrs = new LinkedHashMap<String, String>();
+      else if (attrs instanceof SharedAttributes)   // copy on write
+         attrs = new LinkedHashMap<String, String>(attrs);
 
       return attrs;
    }
 
 
 
+   /**
+    * An attribute Map which several Xens may share, see XenParser.setSharing().  attributes() copies it before any change.
+    */
+   static final class SharedAttributes extends LinkedHashMap<String, String> {
+      private static final long serialVersionUID = 1L;
+
+      SharedAttributes(int initialCapacity) {
+         super(initialCapacity);
+      }
+   }
+
+
    /**
     * Similar to org.w3c.dom.Node.appendChild() and groovy.util.Node.append(), but varargs to allow multiple additions
     * @param childs 0 or more to be appended
     * @return this
     */
    public Xen append(Xen... childs) {
-      if (childs.length == 0)
+      return appendAll(Arrays.asList(childs));
+   }
+
+
+   /**
+    * Appends many children at once, growing our List once and calling modified() once
+    * @param childs 0 or more to be appended, in order
+    * @return this
+    */
+   public Xen appendAll(Collection<? extends Xen> childs) {
+      if (childs.isEmpty())
          return this;
 
       children();  // prepare for modification();
+      if (children instanceof ArrayList)
+         ((ArrayList<Xen>) children).ensureCapacity(children.size() + childs.size());
       for (Xen child : childs) {
-         child.parent = this;
+         adopt(child);
          this.children.add(child);
+         for (AttributeIndex index : indexes.values())
+            index.added(child);
       }
 
+      modified();
       return this;
    }
 
 
+   /**
+    * For parsers and converters building a brand new tree, which can have no AttributeIndexes, caches, etc.
+    * Skips the bookkeeping that append() does for each child, which costs O(depth).
+    * @param child  to be appended
+    * @return this
+    */
+   Xen appendNew(Xen child) {
+      children();  // prepare for modification();
+      adopt(child);
+      children.add(child);
+      return this;
+   }
+
+
+   /**
+    * Makes us the parent of child, and, if needed, updates the root and depth of its entire subtree
+    * @param child  non-null
+    */
+   protected void adopt(Xen child) {
+      child.parent = this;
+      if ((child.root == this.root) && (child.depth == this.depth + 1))
+         return;
+
+      int depthChange = this.depth + 1 - child.depth;
+      ArrayDeque<Xen> stack = new ArrayDeque<Xen>();
+      stack.push(child);
+      while (!stack.isEmpty()) {
+         Xen xen = stack.pop();
+         xen.root = this.root;
+         xen.depth += depthChange;
+         xen.absolutePath = null;   // the stamps are modCounts of the old root, which the new one may reach too
+         xen.siblingStamp = -1;
+         for (Xen grandChild : xen.children)
+            stack.push(grandChild);
+      }
+   }
+
+
    /**
     * Similar to groovy.util.Node.remove(), but varargs to allow multiple removals
     * @param childs 0 or more to be removed
     * @return this
     */
    public Xen remove(Xen... childs)  {
-      if (childs.length > 0)
-         children().removeAll(Arrays.asList(childs));
+      if ((childs.length > 0) && removeChildren(Arrays.asList(childs)))
+         modified();
 
       return this;
    }
 
 
+   /**
+    * Removes all the children selected by a predicate, in one pass
+    * @param predicate  applied to all our children, e.g. new XenPredicate.AttributeMatches("status", "obsolete", false)
+    * @return this
+    */
+   public Xen removeIf(XenPredicate predicate) {
+      if (children.isEmpty())
+         return this;
+
+      List<Xen> selected = predicate.apply(new ArrayList<Xen>(children));
+      if (!selected.isEmpty() && removeChildren(selected))
+         modified();
+
+      return this;
+   }
+
+
+   /**
+    * Replaces all of our children at once.  Any AttributeIndexes are rebuilt once, at the end.
+    * @param childs  new children, in order
+    * @return this
+    */
+   public Xen replaceChildren(Collection<? extends Xen> childs) {
+      notAttrMock();
+      List<Xen> replacement = new ArrayList<Xen>(childs.size());
+      for (Xen child : childs) {
+         adopt(child);
+         replacement.add(child);
+      }
+
+      children = replacement;
+      rebuildIndexes();
+      modified();
+      return this;
+   }
+
+
+   /**
+    * Sorts our children, stably.  Any AttributeIndexes are rebuilt once, at the end.
+    * @param comparator  non-null
+    * @return this
+    */
+   public Xen sortChildren(Comparator<? super Xen> comparator) {
+      if (children.size() > 1) {
+         Collections.sort(children, comparator);
+         rebuildIndexes();
+         modified();
+      }
+
+      return this;
+   }
+
+
+   // removes in one pass over our children, comparing by identity.  If it returns true, caller must call modified()
+   private boolean removeChildren(Collection<? extends Xen> gone) {
+      if (children.isEmpty())
+         return false;
+
+      Set<Xen> goneSet = Collections.newSetFromMap(new IdentityHashMap<Xen, Boolean>(gone.size() * 2));
+      goneSet.addAll(gone);
+      int kept = 0;
+      for (int i = 0; i < children.size(); i++) {
+         Xen child = children.get(i);
+         if (!goneSet.contains(child))
+            children.set(kept++, child);
+      }
+      if (kept == children.size())
+         return false;
+      children.subList(kept, children.size()).clear();
+
+      if (gone.size() == 1) {
+         for (AttributeIndex index : indexes.values())
+            index.removed(gone.iterator().next());
+      }
+      else
+         rebuildIndexes();  // cheaper than finding each one in its list
+      return true;
+   }
+
+
+   private void rebuildIndexes() {
+      for (AttributeIndex index : indexes.values())
+         index.rebuild();
+   }
+
+
    /**
     * Similar to Element.getElementsByTagName()
     * @param name  wildcard "*" is supported, but not any predicates
@@ -391,6 +631,90 @@ public class Xen {
 
 
 
+   /**
+    * Creates (or recreates) an AttributeIndex so that Xpath lookups like elementPath[@attributeName='value'] are a hash probe.
+    * The index is built once, over the parents that currently match, and then maintained through mutations.
+    * e.g. <code>root.createIndex("catalog/item", "id")</code>
+    *
+    * @param elementPath   XPath-like, relative to this.  The last segment is the child name (or "*"), and may not have a predicate
+    * @param attributeName to index
+    * @return number of parent Xens that were indexed
+    */
+   public int createIndex(String elementPath, String attributeName) {
+      int count = 0;
+      String childName = childNameOf(elementPath);
+      for (Xen parent : parentsFor(elementPath)) {
+         if (parent.notAttrMock()) {
+            parent.attributeIndexes().put(AttributeIndex.key(childName, attributeName), new AttributeIndex(parent, childName, attributeName));
+            count++;
+         }
+      }
+
+      return count;
+   }
+
+
+   /**
+    * Removes AttributeIndexes created by createIndex()
+    * @param elementPath   same as was passed to createIndex()
+    * @param attributeName same as was passed to createIndex()
+    * @return number of indexes removed
+    */
+   public int dropIndex(String elementPath, String attributeName) {
+      int count = 0;
+      String key = AttributeIndex.key(childNameOf(elementPath), attributeName);
+      for (Xen parent : parentsFor(elementPath)) {
+         if (parent.indexes.containsKey(key)) {
+            parent.attributeIndexes().remove(key);
+            count++;
+         }
+      }
+
+      return count;
+   }
+
+
+   /**
+    * Returns the AttributeIndex of our children, if one has been created
+    * @param childName      name of the children, or "*"
+    * @param attributeName  name of the attribute
+    * @return null if none
+    */
+   public AttributeIndex attributeIndex(String childName, String attributeName) {
+      return indexes.get(AttributeIndex.key(childName, attributeName));
+   }
+
+
+   protected synchronized Map<String, AttributeIndex> attributeIndexes() {
+      if (indexes == NO_INDEXES)
+         indexes = new HashMap<String, AttributeIndex>(4);
+
+      return indexes;
+   }
+
+
+   // returns the last segment of an elementPath, the child name
+   private static String childNameOf(String elementPath) {
+      String childName = elementPath.substring(elementPath.lastIndexOf(Xpath.DELIM) + 1);
+      if ((childName.length() == 0) || (childName.indexOf('[') >= 0) || childName.startsWith(Xpath.ATTRIBUTE) ||
+          Xpath.PARENT.equals(childName) || Xpath.CURRENT.equals(childName))
+         throw new IllegalArgumentException("Cannot index <" + elementPath + ">");
+
+      return childName;
+   }
+
+   // returns all the parents for an elementPath
+   private List<Xen> parentsFor(String elementPath) {
+      int lastDelim = elementPath.lastIndexOf(Xpath.DELIM);
+      if (lastDelim < 0)
+         return Collections.singletonList(this);
+      if (lastDelim == 0)
+         return Collections.singletonList(rootElement());
+
+      return all(elementPath.substring(0, lastDelim));
+   }
+
+
    /**
     * Find all elements matching the XPath-like search criteria
     * @param xpaths  XPath-like
@@ -414,7 +738,7 @@ public class Xen {
          return this;
 
       Xpath xpath = new Xpath(path);
-      List<Xen> matches = xpath.evaluate(this);
+      List<Xen> matches = xpath.evaluate(this, 0, 2);  // 2 is enough to know if there are many
       if (matches.size() == 0)
          return null;
       return xpath.thereCanBeOnlyOne(matches);
@@ -433,11 +757,35 @@ public class Xen {
          return this;
 
       Xpath xpath = new Xpath(path);
-      List<Xen> matches = xpath.evaluate(this);
+      List<Xen> matches = xpath.evaluate(this, 0, 2);  // 2 is enough to know if there are many
       return xpath.thereCanBeOnlyOne(matches);
    }
 
 
+   /**
+    * Like all(), but collects statistics about each step, see XpathProfile
+    * @param xpaths  XPath-like
+    * @return never null, toString() gives a readable summary
+    */
+   public XpathProfile profile(String... xpaths) {
+      return new Xpath(xpaths).profile(this);
+   }
+
+
+   /**
+    * Get the first "Element" matching the XPath-like search criteria.  Stops searching as soon as one is found.
+    *
+    * @param path  XPath-like, if empty returns this
+    * @return Xen, null if none were found
+    */
+   public Xen first(String... path) {
+      if (path.length == 0)
+         return this;
+
+      return new Xpath(path).first(this);
+   }
+
+
    /**
     * Get the text from a single REQUIRED element matching the XPath-like search criteria
     * @param path  XPath-like, if empty returns this.text
@@ -472,34 +820,216 @@ public class Xen {
    }
 
    /**
-    * Returns an XPath-like String that resolves to this node
-    * TODO  Does not include index if there are siblings of same name
+    * A counter that changes whenever this Xen, or any of its descendants, is modified through
+    * append(), remove(), setText(), putAttributes() or setAttributes().
+    * Changes made directly to the Collections from children() or attributes() are <em>not</em> tracked.
+    * @return  compare with a previous value to see if this subtree has changed
+    */
+   public long modCount() {
+      return modCount;
+   }
+
+
+   /**
+    * A Merkle style hash of this subtree: our name, text and attributes, and the structuralHash() of each child, in order.
+    * (userProperties and the parent are not included).  It is cached, and after a modification only the modified Xens
+    * and their ancestors are rehashed.  As with modCount(), direct changes to children() or attributes() are not noticed.
+    * @return  equal for subtrees which are deepEquals()
+    */
+   public long structuralHash() {
+      if (hashStamp == modCount)
+         return structuralHash;
+
+      // post-order, descending only into children whose hash is out of date
+      ArrayDeque<Xen> stack = new ArrayDeque<Xen>();
+      ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+      stack.push(this);
+      next.push(0);
+      while (!stack.isEmpty()) {
+         Xen xen = stack.peek();
+         int i = next.pop();
+         while ((i < xen.children.size()) && (xen.children.get(i).hashStamp == xen.children.get(i).modCount))
+            i++;
+         if (i < xen.children.size()) {
+            next.push(i + 1);
+            stack.push(xen.children.get(i));
+            next.push(0);
+         }
+         else {
+            stack.pop();
+            long hash = mix(xen.name.hashCode()) ^ mix(xen.text.hashCode() + 0x9E3779B97F4A7C15L) ^ (xen.attrs.hashCode() * 0xC2B2AE3D27D4EB4FL);
+            for (Xen child : xen.children)
+               hash = mix(hash * 31 + child.structuralHash);
+            xen.structuralHash = hash;
+            xen.hashStamp = xen.modCount;
+         }
+      }
+
+      return structuralHash;
+   }
+
+
+   // the finalizer from SplitMix64, spreads bits so that similar subtrees get very different hashes
+   private static long mix(long z) {
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+   }
+
+
+   /**
+    * Structural equality, like comparing toString(), but much faster.  Compares structuralHash() first,
+    * so unequal subtrees are usually rejected at once, and identical Xens are not compared further.
+    * Xen does not override equals(), which remains identity, as needed by remove() etc.
+    * @param other  may be null
+    * @return true if both have the same names, text, attributes (in any order), and deepEquals children in the same order
+    */
+   public boolean deepEquals(Xen other) {
+      if (other == this)
+         return true;
+      if ((other == null) || (structuralHash() != other.structuralHash()))
+         return false;
+
+      ArrayDeque<Xen> stack = new ArrayDeque<Xen>();
+      stack.push(this);
+      stack.push(other);
+      while (!stack.isEmpty()) {
+         Xen b = stack.pop();
+         Xen a = stack.pop();
+         if (a == b)
+            continue;
+         if (!a.name.equals(b.name) || !a.text.equals(b.text) || !a.attrs.equals(b.attrs) ||
+             (a.children.size() != b.children.size()) || (a.structuralHash != b.structuralHash))
+            return false;
+         for (int i = 0; i < a.children.size(); i++) {
+            stack.push(a.children.get(i));
+            stack.push(b.children.get(i));
+         }
+      }
+
+      return true;
+   }
+
+
+   /**
+    * Returns an XPath-like String that resolves to this node.
+    * If there are siblings of the same name, it includes the (1-based, W3C) index, e.g. "/book[3]/title".
+    * The result is cached until the tree is changed.
     * @return String
     */
    public String absolutePath() {
+      long stamp = root.modCount;
+      if ((absolutePath != null) && (pathStamp == stamp))
+         return absolutePath;
+
       if (parent == null)
-         return Xpath.ROOT;
+         return cachePath(Xpath.ROOT, stamp);
+
+      // walk up to the nearest valid cached path (or the root), then build down from there in one StringBuilder.
+      // Only cache for us and our parent (which saves work for our siblings), caching every ancestor would be O(depth^2)
+      ArrayDeque<Xen> uncached = new ArrayDeque<Xen>();
+      Xen xen = this;
+      while ((xen.parent != null) && ((xen.absolutePath == null) || (xen.pathStamp != stamp))) {
+         uncached.push(xen);
+         xen = xen.parent;
+      }
 
-      String s = parent.absolutePath();
-      if (s.length() > 1)
-         s = s + Xpath.DELIM;
+      StringBuilder sb = new StringBuilder(xen.parent == null ? "" : xen.absolutePath);
+      while (!uncached.isEmpty()) {
+         xen = uncached.pop();
+         sb.append(Xpath.DELIM).append(xen.name);
+         int index = xen.siblingIndex(stamp);
+         if (index > 0)
+            sb.append('[').append(index).append(']');
+         if ((xen == this) || (xen == parent))
+            xen.cachePath(sb.toString(), stamp);
+      }
 
-      return s + name;
+      return absolutePath;
+   }
+
+
+   private String cachePath(String path, long stamp) {
+      this.absolutePath = path;
+      this.pathStamp = stamp;
+      return path;
+   }
+
+
+   // our 1-based index among siblings of the same name, 0 if unique.  Our parent calculates this for all of its children at once.
+   private int siblingIndex(long stamp) {
+      if ((siblingStamp == stamp) || isAttrMock || (parent == null))
+         return siblingIndex;
+
+      Map<String, int[]> counts = new HashMap<String, int[]>();
+      for (Xen sibling : parent.children) {
+         int[] count = counts.get(sibling.name);
+         if (count == null)
+            counts.put(sibling.name, count = new int[1]);
+         sibling.siblingIndex = ++count[0];
+      }
+      for (Xen sibling : parent.children) {
+         if (counts.get(sibling.name)[0] == 1)
+            sibling.siblingIndex = 0;
+         sibling.siblingStamp = stamp;
+      }
+
+      return siblingIndex;
    }
 
 
 
    protected List<Xen> breadthFirst(List<Xen> list) {
+      // list doubles as our queue: everything before i has had its children added
+      int i = list.size();
       list.addAll(children);
-      for (Xen child : children)
-         child.breadthFirst(list);
+      for (; i < list.size(); i++)
+         list.addAll(list.get(i).children);
 
       return list;
    }
 
 
    /**
-    * Similar to groovy.util.Node.breadthFirst()
+    * Iterates over this and all descendants, breadth first (level by level), without copying the tree.
+    * The queue holds only the Xens whose children are still to come.
+    * @return Iterator, remove() is not supported
+    */
+   public Iterator<Xen> breadthFirstIterator() {
+      return new Iterator<Xen>() {
+         final ArrayDeque<Xen> parents = new ArrayDeque<Xen>();
+         List<Xen> current = Collections.singletonList(Xen.this);
+         int next = 0;
+
+         public boolean hasNext() {
+            while (next >= current.size()) {
+               if (parents.isEmpty())
+                  return false;
+               current = parents.poll().children;
+               next = 0;
+            }
+            return true;
+         }
+
+         public Xen next() {
+            if (!hasNext())
+               throw new NoSuchElementException();
+
+            Xen xen = current.get(next++);
+            if (!xen.children.isEmpty())
+               parents.add(xen);
+            return xen;
+         }
+
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+
+   /**
+    * Similar to groovy.util.Node.breadthFirst().   Level by level, starting with this.
     * @return List<Xen>
     */
    public List<Xen> breadthFirst() {
@@ -511,9 +1041,14 @@ public class Xen {
 
 
    protected List<Xen> depthFirst(List<Xen> list) {
-      list.add(this);
-      for (Xen child : children)
-         child.depthFirst(list);
+      ArrayDeque<Xen> stack = new ArrayDeque<Xen>();
+      stack.push(this);
+      while (!stack.isEmpty()) {
+         Xen xen = stack.pop();
+         list.add(xen);
+         for (int i = xen.children.size() - 1; i >= 0; i--)
+            stack.push(xen.children.get(i));
+      }
 
       return list;
    }
@@ -552,6 +1087,15 @@ public class Xen {
    }
 
 
+   /**
+    * Called after any modification to this Xen.  Bumps our modCount and that of all our ancestors.
+    */
+   protected void modified() {
+      for (Xen xen = this; xen != null; xen = xen.parent)
+         xen.modCount++;
+   }
+
+
     protected boolean notAttrMock() {
        if (isAttrMock)
           throw new IllegalStateException("Modifications disallowed on a temporary Attribute Node.");
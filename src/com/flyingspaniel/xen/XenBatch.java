@@ -0,0 +1,353 @@
+package com.flyingspaniel.xen;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Parses many documents concurrently, extracts something from each, and hands the results over in input order.
+ * Example use:
+ * <pre><code>
+    XenBatch batch = new XenBatch(8);    // or new XenBatch(XenBatch.newVirtualThreadExecutor(), 256)
+    List&lt;String&gt; ids = new ArrayList&lt;String&gt;();
+    XenBatch.Stats stats = batch.collect(XenBatch.files(inbox, ".xml"), new XenBatch.Extractor&lt;String&gt;() {
+       public String extract(Xen order) { return order.oneText("header/id"); }
+    }, ids);
+    System.out.println(stats);
+    batch.close();
+ * </code></pre>
+ *
+ * Inputs may be Files, byte[]s, ByteBuffers or InputStreams (which are closed), override parse() for others.
+ * At most maxInFlight documents are queued or being processed at once; the thread reading the inputs waits
+ * for the oldest to finish before submitting more, so a huge or lazy source of inputs is never read far ahead.
+ * XenParsers are pooled and reused, (not ThreadLocal, which would not be reused with virtual threads).
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenBatch implements Closeable {
+
+   /**
+    * Extracts the result from one document.  Called by many threads at once.
+    */
+   public interface Extractor<R> {
+      R extract(Xen root) throws Exception;
+   }
+
+   /**
+    * Receives results, in input order, on the thread that called process()
+    */
+   public interface Sink<R> {
+      void result(long index, Object input, R result);
+
+      void failed(long index, Object input, Exception e);
+   }
+
+
+   protected final ExecutorService executor;
+   protected final int maxInFlight;
+   private final boolean ownsExecutor;
+   private final Queue<XenParser> parsers = new ConcurrentLinkedQueue<XenParser>();
+
+
+   /**
+    * Uses its own pool of threads, shut down by close()
+    * @param threads  number of worker threads
+    */
+   public XenBatch(int threads) {
+      this(Executors.newFixedThreadPool(threads), threads * 4, true);
+   }
+
+   /**
+    * Uses your executor, which close() does not shut down
+    * @param executor     e.g. newVirtualThreadExecutor()
+    * @param maxInFlight  the most documents queued or in progress at once, bounding memory use
+    */
+   public XenBatch(ExecutorService executor, int maxInFlight) {
+      this(executor, maxInFlight, false);
+   }
+
+   protected XenBatch(ExecutorService executor, int maxInFlight, boolean ownsExecutor) {
+      if (maxInFlight < 1)
+         throw new IllegalArgumentException("maxInFlight must be positive");
+      this.executor = executor;
+      this.maxInFlight = maxInFlight;
+      this.ownsExecutor = ownsExecutor;
+   }
+
+
+   /**
+    * @return  a new thread per task executor using virtual threads, if running on Java 21 or later,
+    *          else a fixed pool with a thread per processor
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      try {
+         Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) method.invoke(null);
+      }
+      catch (Exception e) {
+         return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+      }
+   }
+
+
+   /**
+    * Process all the inputs, passing each result to sink, in input order
+    * @param inputs     read lazily, only as fast as they are processed
+    * @param extractor  non-null
+    * @param sink       non-null
+    * @return  Stats for this run
+    * @throws InterruptedException  in which case unfinished work is cancelled
+    */
+   public <R> Stats process(Iterable<?> inputs, Extractor<R> extractor, Sink<? super R> sink) throws InterruptedException {
+      Stats stats = new Stats();
+      ArrayDeque<Pending<R>> pending = new ArrayDeque<Pending<R>>(Math.min(maxInFlight, 1024));
+      long index = 0;
+      try {
+         for (Object input : inputs) {
+            if (pending.size() >= maxInFlight)
+               deliver(pending.poll(), sink, stats);   // back-pressure
+            pending.add(new Pending<R>(index++, input, executor.submit(task(input, extractor, stats))));
+         }
+         while (!pending.isEmpty())
+            deliver(pending.poll(), sink, stats);
+      }
+      finally {
+         for (Pending<R> unfinished : pending)
+            unfinished.future.cancel(true);
+      }
+
+      stats.elapsedNanos = System.nanoTime() - stats.start;
+      return stats;
+   }
+
+
+   /**
+    * Process all the inputs, adding the results to a List in input order.  A document which fails adds null.
+    * @return  Stats for this run, including the number of failures
+    */
+   public <R> Stats collect(Iterable<?> inputs, Extractor<R> extractor, final List<? super R> results) throws InterruptedException {
+      return process(inputs, extractor, new Sink<R>() {
+         public void result(long index, Object input, R result) {
+            results.add(result);
+         }
+
+         public void failed(long index, Object input, Exception e) {
+            results.add(null);
+         }
+      });
+   }
+
+
+   // one input which has been submitted
+   static final class Pending<R> {
+      final long index;
+      final Object input;
+      final Future<R> future;
+
+      Pending(long index, Object input, Future<R> future) {
+         this.index = index;
+         this.input = input;
+         this.future = future;
+      }
+   }
+
+
+   private <R> Callable<R> task(final Object input, final Extractor<R> extractor, final Stats stats) {
+      return new Callable<R>() {
+         public R call() throws Exception {
+            long start = System.nanoTime();
+            XenParser parser = parsers.poll();
+            if (parser == null)
+               parser = newParser();
+            try {
+               return extractor.extract(parse(parser, input));
+            }
+            finally {
+               parser.current = parser.root = null;   // so it no longer holds the tree
+               parsers.offer(parser);
+               stats.record(System.nanoTime() - start);
+            }
+         }
+      };
+   }
+
+
+   private static <R> void deliver(Pending<R> pending, Sink<? super R> sink, Stats stats) throws InterruptedException {
+      R result;
+      try {
+         result = pending.future.get();
+      }
+      catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof Error)
+            throw (Error) cause;
+         stats.failures.incrementAndGet();
+         sink.failed(pending.index, pending.input, (cause instanceof Exception) ? (Exception) cause : ee);
+         return;
+      }
+
+      sink.result(pending.index, pending.input, result);
+   }
+
+
+   /**
+    * Override to configure the parsers
+    */
+   protected XenParser newParser() throws Exception {
+      return new XenParser();
+   }
+
+   /**
+    * Override to accept other kinds of input
+    * @param parser  for this thread's use only
+    * @param input   a File, byte[], ByteBuffer or InputStream
+    * @return root
+    */
+   protected Xen parse(XenParser parser, Object input) throws Exception {
+      if (input instanceof File)
+         return parser.parse((File) input);
+      if (input instanceof byte[])
+         return parser.parse((byte[]) input, 0, ((byte[]) input).length);
+      if (input instanceof ByteBuffer)
+         return parser.parse(((ByteBuffer) input).duplicate());
+      if (input instanceof InputStream) {
+         InputStream in = (InputStream) input;
+         try {
+            return parser.parse(in);
+         }
+         finally {
+            in.close();
+         }
+      }
+
+      throw new IllegalArgumentException("cannot parse a " + input.getClass().getName());
+   }
+
+
+   /**
+    * Shuts down the executor, if it was created by the constructor
+    */
+   public void close() {
+      if (ownsExecutor)
+         executor.shutdown();
+   }
+
+
+   /**
+    * All the files in a directory, and its subdirectories, whose names end with suffix.
+    * Directories are listed as they are reached, so processing can start at once.
+    * @param suffix  e.g. ".xml", "" for all
+    */
+   public static Iterable<File> files(final File directory, final String suffix) {
+      return new Iterable<File>() {
+         public Iterator<File> iterator() {
+            return new Iterator<File>() {
+               final ArrayDeque<File> directories = new ArrayDeque<File>(Collections.singleton(directory));
+               final ArrayDeque<File> files = new ArrayDeque<File>();
+
+               public boolean hasNext() {
+                  while (files.isEmpty() && !directories.isEmpty()) {
+                     File[] listed = directories.pop().listFiles();
+                     if (listed == null)
+                        continue;
+                     Arrays.sort(listed);
+                     for (int i = listed.length - 1; i >= 0; i--) {
+                        if (listed[i].isDirectory())
+                           directories.push(listed[i]);
+                        else if (listed[i].getName().endsWith(suffix))
+                           files.addFirst(listed[i]);
+                     }
+                  }
+                  return !files.isEmpty();
+               }
+
+               public File next() {
+                  if (!hasNext())
+                     throw new NoSuchElementException();
+                  return files.pop();
+               }
+
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+      };
+   }
+
+
+
+   /**
+    * Throughput and latency for one run.  Latency is from when a worker starts a document until its result is extracted,
+    * and the histogram is as in XenMetrics.Registry, bucket i counting documents taking less than 2<sup>i</sup> microseconds
+    * (the last bucket holds the rest).
+    */
+   public static class Stats {
+      final long start = System.nanoTime();
+      volatile long elapsedNanos;
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+      final AtomicLong busyNanos = new AtomicLong();
+      final AtomicLong maxNanos = new AtomicLong();
+      final AtomicLongArray histogram = new AtomicLongArray(XenMetrics.Registry.HISTOGRAM_BUCKETS);
+
+      void record(long nanos) {
+         count.incrementAndGet();
+         busyNanos.addAndGet(nanos);
+         histogram.incrementAndGet(XenMetrics.Registry.bucket(nanos));
+         long max = maxNanos.get();
+         while ((nanos > max) && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+      }
+
+      public long getCount() { return count.get(); }
+      public long getFailures() { return failures.get(); }
+      public long getElapsedNanos() { return elapsedNanos; }
+      public long getMaxNanos() { return maxNanos.get(); }
+
+      public double getDocumentsPerSecond() {
+         return (elapsedNanos > 0) ? count.get() * 1e9 / elapsedNanos : 0.0;
+      }
+
+      public double getMeanMicros() {
+         long n = count.get();
+         return (n > 0) ? busyNanos.get() / 1e3 / n : 0.0;
+      }
+
+      /**
+       * @param fraction  e.g. 0.99
+       * @return  an upper bound, in microseconds, on the latency of that fraction of the documents
+       */
+      public long getPercentileMicros(double fraction) {
+         long target = (long) Math.ceil(count.get() * fraction);
+         long seen = 0;
+         for (int i = 0; i < histogram.length() - 1; i++) {
+            seen += histogram.get(i);
+            if ((seen >= target) && (seen > 0))
+               return 1L << i;
+         }
+         return maxNanos.get() / 1000;   // in the last bucket, which has no upper bound
+      }
+
+      public long[] getLatencyHistogram() {
+         long[] counts = new long[histogram.length()];
+         for (int i = 0; i < counts.length; i++)
+            counts[i] = histogram.get(i);
+         return counts;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d documents (%d failed) in %.1f ms, %.0f/s, latency mean %.0f us, p50 < %d us, p99 < %d us, max %d us",
+                              getCount(), getFailures(), elapsedNanos / 1e6, getDocumentsPerSecond(), getMeanMicros(),
+                              getPercentileMicros(0.5), getPercentileMicros(0.99), getMaxNanos() / 1000);
+      }
+   }
+
+}
@@ -0,0 +1,391 @@
+package com.flyingspaniel.xen;
+
+import java.util.*;
+
+/**
+ * Compares two trees of Xens and produces a compact Script of edits which, applied to the first (or to
+ * an identical copy), makes it look like the second.  Only the Xens that changed are touched, so the rest of
+ * the live tree, its userProperties and AttributeIndexes, are kept.  Example use:
+ * <pre><code>
+    XenDiff differ = new XenDiff("id", "sku");              // attributes which identify an element
+    XenDiff.Script script = differ.diff(liveRoot, freshlyParsedRoot);
+    if (!script.isEmpty())
+       script.apply(liveRoot);
+ * </code></pre>
+ *
+ * Children are matched by name plus the value of the first id attribute they have, else by name and position among
+ * the siblings of that name.  Matched children are compared recursively, the rest are removed or inserted.
+ * Since Xen has no insert(), children from the first change in order onwards are removed and re-appended,
+ * which keeps their identity and subtrees.  Changed text and attributes are applied via setText(),
+ * putAttributes() and removeAttributes().
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenDiff {
+
+   public enum Kind { SET_TEXT, PUT_ATTRIBUTES, REMOVE_ATTRIBUTES, CHILDREN }
+
+   /**
+    * One change, to the Xen found by following path (child indexes, in the old tree) from the root
+    */
+   public static class Edit {
+      public final Kind kind;
+      protected final int[] path;
+      protected final String name;  // of the Xen at path, to check that the live tree matches
+
+      protected String text;                // SET_TEXT
+      protected Object[] pairs;             // PUT_ATTRIBUTES
+      protected String[] names;             // REMOVE_ATTRIBUTES
+      protected int[] removed;              // CHILDREN: old indexes of children to remove
+      protected int keep;                   // CHILDREN: children remaining in front which stay put
+      protected Object[] tail;              // CHILDREN: appended after those, an Integer (old index) or a Xen to copy
+
+      Edit(Kind kind, int[] path, String name) {
+         this.kind = kind;
+         this.path = path;
+         this.name = name;
+      }
+
+      public int[] path() { return path.clone(); }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder(kind.toString()).append(' ').append(name);
+         for (int i : path)
+            sb.append('/').append(i);
+         switch (kind) {
+            case SET_TEXT: sb.append(" \"").append(text).append('"'); break;
+            case PUT_ATTRIBUTES: sb.append(' ').append(Arrays.toString(pairs)); break;
+            case REMOVE_ATTRIBUTES: sb.append(' ').append(Arrays.toString(names)); break;
+            case CHILDREN:
+               sb.append(" removed=").append(removed.length).append(" keep=").append(keep).append(" tail=").append(tail.length);
+               break;
+         }
+         return sb.toString();
+      }
+   }
+
+
+   /**
+    * The edits, in order.  May be applied more than once, e.g. to several copies of the old tree.
+    */
+   public static class Script {
+      protected final List<Edit> edits;
+
+      Script(List<Edit> edits) {
+         this.edits = edits;
+      }
+
+      public List<Edit> edits() { return Collections.unmodifiableList(edits); }
+
+      public boolean isEmpty() { return edits.isEmpty(); }
+
+      public int size() { return edits.size(); }
+
+
+      /**
+       * Applies the edits
+       * @param root  the old tree that was diffed, or an identical one
+       * @return root
+       * @throws IllegalStateException if root does not have the shape of the old tree
+       */
+      public Xen apply(Xen root) {
+         // find every target first, since the paths are for the old tree
+         Xen[] targets = new Xen[edits.size()];
+         for (int e = 0; e < targets.length; e++)
+            targets[e] = resolve(root, edits.get(e));
+
+         for (int e = 0; e < targets.length; e++) {
+            Edit edit = edits.get(e);
+            Xen xen = targets[e];
+            switch (edit.kind) {
+               case SET_TEXT: xen.setText(edit.text); break;
+               case PUT_ATTRIBUTES: xen.putAttributes(edit.pairs); break;
+               case REMOVE_ATTRIBUTES: xen.removeAttributes(edit.names); break;
+               case CHILDREN: applyChildren(xen, edit); break;
+            }
+         }
+
+         return root;
+      }
+
+
+      private static Xen resolve(Xen root, Edit edit) {
+         Xen xen = root;
+         for (int i : edit.path) {
+            if (i >= xen.children.size())
+               throw new IllegalStateException("tree does not match at " + edit);
+            xen = xen.children.get(i);
+         }
+         if (!xen.name.equals(edit.name))
+            throw new IllegalStateException("found " + xen.name + " instead of " + edit);
+         return xen;
+      }
+
+
+      private static void applyChildren(Xen parent, Edit edit) {
+         List<Xen> old = new ArrayList<Xen>(parent.children);
+         List<Xen> removing = new ArrayList<Xen>(edit.removed.length + edit.tail.length);
+         for (int i : edit.removed)
+            removing.add(old.get(i));
+         Xen[] appending = new Xen[edit.tail.length];
+         for (int t = 0; t < appending.length; t++) {
+            if (edit.tail[t] instanceof Integer) {
+               appending[t] = old.get((Integer) edit.tail[t]);
+               removing.add(appending[t]);
+            }
+            else
+               appending[t] = copy((Xen) edit.tail[t]);
+         }
+
+         parent.remove(removing.toArray(new Xen[removing.size()]));
+         parent.append(appending);
+      }
+   }
+
+
+   protected final String[] idAttributes;
+
+
+   /**
+    * Constructor
+    * @param idAttributes  names of attributes which identify an element among its siblings, may be none
+    */
+   public XenDiff(String... idAttributes) {
+      this.idAttributes = idAttributes.clone();
+   }
+
+
+   /**
+    * Compare two trees
+    * @param from  the old tree, which will later be patched.  Its root should have the same name as to.
+    * @param to    the new tree, not modified, (but parts of it are copied when the Script is applied)
+    * @return Script, empty if they are the same
+    * @throws IllegalArgumentException if the roots have different names
+    */
+   public Script diff(Xen from, Xen to) {
+      if (!from.name.equals(to.name))
+         throw new IllegalArgumentException("cannot diff " + from.name + " to " + to.name);
+
+      List<Edit> edits = new ArrayList<Edit>();
+      ArrayDeque<Pair> stack = new ArrayDeque<Pair>();
+      stack.push(new Pair(from, to, null, -1));
+      while (!stack.isEmpty()) {
+         Pair pair = stack.pop();
+         if (pair.from == pair.to)
+            continue;
+         compareContent(pair, edits);
+         List<Pair> matched = compareChildren(pair, edits);
+         for (int i = matched.size() - 1; i >= 0; i--)   // so they are popped in order
+            stack.push(matched.get(i));
+      }
+
+      return new Script(edits);
+   }
+
+
+   // matched Xens, linked to their parents so the path need only be built when there is an edit
+   static final class Pair {
+      final Xen from;
+      final Xen to;
+      final Pair parent;
+      final int index;  // of from among its siblings
+
+      Pair(Xen from, Xen to, Pair parent, int index) {
+         this.from = from;
+         this.to = to;
+         this.parent = parent;
+         this.index = index;
+      }
+
+      int[] path() {
+         int length = 0;
+         for (Pair p = this; p.parent != null; p = p.parent)
+            length++;
+         int[] path = new int[length];
+         for (Pair p = this; p.parent != null; p = p.parent)
+            path[--length] = p.index;
+         return path;
+      }
+   }
+
+
+   private void compareContent(Pair pair, List<Edit> edits) {
+      Xen from = pair.from;
+      Xen to = pair.to;
+      if (!from.text.equals(to.text)) {
+         Edit edit = new Edit(Kind.SET_TEXT, pair.path(), from.name);
+         edit.text = to.text;
+         edits.add(edit);
+      }
+
+      if (from.attrs.equals(to.attrs))
+         return;
+
+      List<Object> pairs = new ArrayList<Object>();
+      for (Map.Entry<String, String> attr : to.attrs.entrySet())
+         if (!attr.getValue().equals(from.attrs.get(attr.getKey()))) {
+            pairs.add(attr.getKey());
+            pairs.add(attr.getValue());
+         }
+      List<String> gone = new ArrayList<String>();
+      for (String name : from.attrs.keySet())
+         if (!to.attrs.containsKey(name))
+            gone.add(name);
+
+      if (!gone.isEmpty()) {
+         Edit edit = new Edit(Kind.REMOVE_ATTRIBUTES, pair.path(), from.name);
+         edit.names = gone.toArray(new String[gone.size()]);
+         edits.add(edit);
+      }
+      if (!pairs.isEmpty()) {
+         Edit edit = new Edit(Kind.PUT_ATTRIBUTES, pair.path(), from.name);
+         edit.pairs = pairs.toArray();
+         edits.add(edit);
+      }
+   }
+
+
+   // matches up the children, adding a CHILDREN Edit if needed.  Returns the matched pairs, for comparison
+   private List<Pair> compareChildren(Pair pair, List<Edit> edits) {
+      List<Xen> fromChildren = pair.from.children;
+      List<Xen> toChildren = pair.to.children;
+      if (fromChildren.isEmpty() && toChildren.isEmpty())
+         return Collections.emptyList();
+
+      // usually most, or all, of the children are in the same place, so check that before building keys
+      int same = 0;
+      int min = Math.min(fromChildren.size(), toChildren.size());
+      List<Pair> matched = new ArrayList<Pair>(toChildren.size());
+      while ((same < min) && sameKey(fromChildren.get(same), toChildren.get(same))) {
+         matched.add(new Pair(fromChildren.get(same), toChildren.get(same), pair, same));
+         same++;
+      }
+      if ((same == fromChildren.size()) && (same == toChildren.size()))
+         return matched;
+
+      String[] fromKeys = keys(fromChildren);
+      Map<String, Integer> fromIndex = new HashMap<String, Integer>((int) (fromKeys.length / 0.75f) + 1);
+      for (int i = 0; i < fromKeys.length; i++)
+         fromIndex.put(fromKeys[i], i);
+
+      // for each of the new children, the index of its match, -1 if none
+      String[] toKeys = keys(toChildren);
+      int[] matches = new int[toKeys.length];
+      boolean[] used = new boolean[fromKeys.length];
+      for (int t = 0; t < same; t++) {
+         matches[t] = t;
+         used[t] = true;
+      }
+      for (int t = same; t < toKeys.length; t++) {
+         Integer f = fromIndex.get(toKeys[t]);
+         matches[t] = (f != null) ? f : -1;
+         if (f != null) {
+            used[f] = true;
+            matched.add(new Pair(fromChildren.get(f), toChildren.get(t), pair, f));
+         }
+      }
+
+      int removedCount = 0;
+      for (boolean u : used)
+         if (!u)
+            removedCount++;
+
+      // how many of the new children are already in place, after the removals
+      int keep = 0;
+      int next = 0;
+      while (keep < matches.length) {
+         while ((next < used.length) && !used[next])
+            next++;
+         if (matches[keep] != next)
+            break;
+         keep++;
+         next++;
+      }
+
+      if ((removedCount == 0) && (keep == matches.length))
+         return matched;
+
+      Edit edit = new Edit(Kind.CHILDREN, pair.path(), pair.from.name);
+      edit.removed = new int[removedCount];
+      for (int f = 0, r = 0; f < used.length; f++)
+         if (!used[f])
+            edit.removed[r++] = f;
+      edit.keep = keep;
+      edit.tail = new Object[matches.length - keep];
+      for (int t = keep; t < matches.length; t++)
+         edit.tail[t - keep] = (matches[t] >= 0) ? (Object) Integer.valueOf(matches[t]) : toChildren.get(t);
+      edits.add(edit);
+
+      return matched;
+   }
+
+
+   // same as comparing keys(), for children in the same position with the same siblings before them
+   protected boolean sameKey(Xen from, Xen to) {
+      if (!from.name.equals(to.name))
+         return false;
+      for (String id : idAttributes) {
+         String value = from.attrs.get(id);
+         if (value != null)
+            return value.equals(to.attrs.get(id));
+         if (to.attrs.containsKey(id))
+            return false;
+      }
+      return true;
+   }
+
+
+   // name plus the first id attribute, else name and position among siblings of the same name
+   protected String[] keys(List<Xen> children) {
+      String[] keys = new String[children.size()];
+      Map<String, int[]> counts = new HashMap<String, int[]>();
+      for (int i = 0; i < keys.length; i++) {
+         Xen child = children.get(i);
+         String key = child.name;
+         for (String id : idAttributes) {
+            String value = child.attrs.get(id);
+            if (value != null) {
+               key = child.name + '@' + id + '=' + value;
+               break;
+            }
+         }
+
+         int[] count = counts.get(key);
+         if (count == null)
+            counts.put(key, count = new int[1]);
+         keys[i] = key + '#' + count[0]++;  // duplicate ids are matched by position
+      }
+
+      return keys;
+   }
+
+
+   /**
+    * @return a deep copy of xen, with no parent
+    */
+   static Xen copy(Xen xen) {
+      Xen copy = copyOne(xen);
+      ArrayDeque<Xen[]> stack = new ArrayDeque<Xen[]>();
+      stack.push(new Xen[] { xen, copy });
+      while (!stack.isEmpty()) {
+         Xen[] originalAndCopy = stack.pop();
+         for (Xen child : originalAndCopy[0].children) {
+            Xen childCopy = copyOne(child);
+            originalAndCopy[1].appendNew(childCopy);
+            stack.push(new Xen[] { child, childCopy });
+         }
+      }
+      return copy;
+   }
+
+   private static Xen copyOne(Xen xen) {
+      Xen copy = new Xen(xen.name, null, xen.text);
+      if (!xen.attrs.isEmpty())
+         copy.attrs = new LinkedHashMap<String, String>(xen.attrs);
+      return copy;
+   }
+
+}
@@ -0,0 +1,253 @@
+package com.flyingspaniel.xen;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional instrumentation of the hot paths: parsing in XenParser, compiling and evaluating Xpaths, and Converter.ToXML.
+ * By default the installed metrics are {@link #NONE}, and the only cost is checking isEnabled().  Example use:
+ * <pre><code>
+    XenMetrics.Registry registry = new XenMetrics.Registry();
+    XenMetrics.install(registry);
+    registry.registerMBean("com.flyingspaniel.xen:type=XenMetrics");   // optional, to view in JConsole etc.
+ * </code></pre>
+ *
+ * To send the numbers elsewhere, extend this class and override the methods you care about.
+ * They may be called by many threads at once, and should be quick.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public abstract class XenMetrics {
+
+   /**
+    * The default, records nothing
+    */
+   public static final XenMetrics NONE = new XenMetrics() {
+      @Override
+      public boolean isEnabled() { return false; }
+   };
+
+   private static volatile XenMetrics installed = NONE;
+
+
+   /**
+    * @return the installed metrics, never null
+    */
+   public static XenMetrics get() {
+      return installed;
+   }
+
+   /**
+    * Install metrics for the entire library
+    * @param metrics  null to go back to NONE
+    */
+   public static void install(XenMetrics metrics) {
+      installed = (metrics != null) ? metrics : NONE;
+   }
+
+
+   /**
+    * If false, callers skip timing and the methods below are not called
+    */
+   public boolean isEnabled() { return true; }
+
+   /**
+    * A document was parsed
+    * @param parser    simple name of the parser class
+    * @param nanos     elapsed
+    * @param size      bytes read, (chars for parseText()), -1 if unknown
+    * @param elements  number of Xens created
+    */
+   public void parsed(String parser, long nanos, long size, int elements) {}
+
+   /**
+    * An Xpath was constructed (and its predicates compiled)
+    */
+   public void xpathCompiled(long nanos) {}
+
+   /**
+    * An Xpath was evaluated
+    * @param nanos    elapsed
+    * @param visited  Xens used as a context, plus their children considered by the next step
+    * @param results  number found
+    */
+   public void xpathEvaluated(long nanos, long visited, int results) {}
+
+   /**
+    * A Xen was converted to text
+    * @param converter  simple name of the Converter class
+    * @param nanos      elapsed
+    * @param chars      length of the output
+    */
+   public void serialized(String converter, long nanos, long chars) {}
+
+
+
+   /**
+    * Management interface for a Registry
+    */
+   public interface RegistryMBean {
+      long getParseCount();
+      long getParseNanos();
+      long getParsedSize();
+      long getParsedElements();
+
+      long getXpathCompileCount();
+      long getXpathCompileNanos();
+      long getXpathEvaluateCount();
+      long getXpathEvaluateNanos();
+      long getXpathMaxEvaluateNanos();
+      long getXpathNodesVisited();
+      long getXpathResults();
+      long[] getXpathLatencyHistogram();
+
+      long getSerializeCount();
+      long getSerializeNanos();
+      long getSerializedChars();
+      double getSerializedCharsPerSecond();
+
+      void reset();
+   }
+
+
+   /**
+    * Simple thread-safe totals, plus a histogram of Xpath evaluation latency
+    * where bucket i counts evaluations taking less than 2<sup>i</sup> microseconds (the last bucket holds the rest).
+    */
+   public static class Registry extends XenMetrics implements RegistryMBean {
+
+      public static final int HISTOGRAM_BUCKETS = 24;
+
+      protected final AtomicLong parseCount = new AtomicLong();
+      protected final AtomicLong parseNanos = new AtomicLong();
+      protected final AtomicLong parsedSize = new AtomicLong();
+      protected final AtomicLong parsedElements = new AtomicLong();
+
+      protected final AtomicLong xpathCompileCount = new AtomicLong();
+      protected final AtomicLong xpathCompileNanos = new AtomicLong();
+      protected final AtomicLong xpathEvaluateCount = new AtomicLong();
+      protected final AtomicLong xpathEvaluateNanos = new AtomicLong();
+      protected final AtomicLong xpathMaxEvaluateNanos = new AtomicLong();
+      protected final AtomicLong xpathNodesVisited = new AtomicLong();
+      protected final AtomicLong xpathResults = new AtomicLong();
+      protected final AtomicLongArray xpathHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+      protected final AtomicLong serializeCount = new AtomicLong();
+      protected final AtomicLong serializeNanos = new AtomicLong();
+      protected final AtomicLong serializedChars = new AtomicLong();
+
+
+      @Override
+      public void parsed(String parser, long nanos, long size, int elements) {
+         parseCount.incrementAndGet();
+         parseNanos.addAndGet(nanos);
+         if (size > 0)
+            parsedSize.addAndGet(size);
+         parsedElements.addAndGet(elements);
+      }
+
+      @Override
+      public void xpathCompiled(long nanos) {
+         xpathCompileCount.incrementAndGet();
+         xpathCompileNanos.addAndGet(nanos);
+      }
+
+      @Override
+      public void xpathEvaluated(long nanos, long visited, int results) {
+         xpathEvaluateCount.incrementAndGet();
+         xpathEvaluateNanos.addAndGet(nanos);
+         xpathNodesVisited.addAndGet(visited);
+         xpathResults.addAndGet(results);
+         xpathHistogram.incrementAndGet(bucket(nanos));
+
+         long max = xpathMaxEvaluateNanos.get();
+         while ((nanos > max) && !xpathMaxEvaluateNanos.compareAndSet(max, nanos))
+            max = xpathMaxEvaluateNanos.get();
+      }
+
+      @Override
+      public void serialized(String converter, long nanos, long chars) {
+         serializeCount.incrementAndGet();
+         serializeNanos.addAndGet(nanos);
+         serializedChars.addAndGet(chars);
+      }
+
+
+      static int bucket(long nanos) {
+         long micros = nanos / 1000;
+         int bucket = 64 - Long.numberOfLeadingZeros(micros);  // 0 for < 1us, 1 for < 2us, 2 for < 4us...
+         return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+      }
+
+
+      public long getParseCount() { return parseCount.get(); }
+      public long getParseNanos() { return parseNanos.get(); }
+      public long getParsedSize() { return parsedSize.get(); }
+      public long getParsedElements() { return parsedElements.get(); }
+
+      public long getXpathCompileCount() { return xpathCompileCount.get(); }
+      public long getXpathCompileNanos() { return xpathCompileNanos.get(); }
+      public long getXpathEvaluateCount() { return xpathEvaluateCount.get(); }
+      public long getXpathEvaluateNanos() { return xpathEvaluateNanos.get(); }
+      public long getXpathMaxEvaluateNanos() { return xpathMaxEvaluateNanos.get(); }
+      public long getXpathNodesVisited() { return xpathNodesVisited.get(); }
+      public long getXpathResults() { return xpathResults.get(); }
+
+      public long[] getXpathLatencyHistogram() {
+         long[] counts = new long[HISTOGRAM_BUCKETS];
+         for (int i = 0; i < counts.length; i++)
+            counts[i] = xpathHistogram.get(i);
+         return counts;
+      }
+
+      public long getSerializeCount() { return serializeCount.get(); }
+      public long getSerializeNanos() { return serializeNanos.get(); }
+      public long getSerializedChars() { return serializedChars.get(); }
+
+      public double getSerializedCharsPerSecond() {
+         long nanos = serializeNanos.get();
+         return (nanos > 0) ? serializedChars.get() * 1e9 / nanos : 0.0;
+      }
+
+
+      /**
+       * Set everything back to 0.  Not atomic, values recorded during a reset may be partially lost.
+       */
+      public void reset() {
+         for (AtomicLong counter : new AtomicLong[] { parseCount, parseNanos, parsedSize, parsedElements,
+                                                       xpathCompileCount, xpathCompileNanos, xpathEvaluateCount,
+                                                       xpathEvaluateNanos, xpathMaxEvaluateNanos, xpathNodesVisited,
+                                                       xpathResults, serializeCount, serializeNanos, serializedChars })
+            counter.set(0);
+         for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+            xpathHistogram.set(i, 0);
+      }
+
+
+      /**
+       * Register with the platform MBeanServer
+       * @param objectName  e.g. "com.flyingspaniel.xen:type=XenMetrics"
+       * @return the ObjectName, for unregistering
+       * @throws JMException if the name is malformed or already registered
+       */
+      public ObjectName registerMBean(String objectName) throws JMException {
+         ObjectName name = new ObjectName(objectName);
+         ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, RegistryMBean.class), name);
+         return name;
+      }
+
+
+      @Override
+      public String toString() {
+         return "XenMetrics[parses=" + parseCount + ", xpathEvaluations=" + xpathEvaluateCount +
+                ", serializations=" + serializeCount + "]";
+      }
+   }
+
+}
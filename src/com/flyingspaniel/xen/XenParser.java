@@ -9,6 +9,10 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Mimics Groovy's XmlParser
@@ -29,6 +33,12 @@ public class XenParser extends DefaultHandler2 {
    Xen current = null;
    Xen root = null;
    boolean trimWhitespace = true;
+   int elementCount = 0;
+
+   // when sharing, the canonical instances seen during this parse
+   boolean sharing = false;
+   final Map<String, String> strings = new HashMap<String, String>();
+   final Map<Map<String, String>, Xen.SharedAttributes> attributeMaps = new HashMap<Map<String, String>, Xen.SharedAttributes>();
 
    final SAXParser saxParser;
 
@@ -66,32 +76,133 @@ public class XenParser extends DefaultHandler2 {
    }
 
 
+   /**
+    * For repetitive documents, saves memory by sharing one instance of each distinct text, attribute value and
+    * set of attributes among all the Xens that have it.  A shared set of attributes is copied if one of them changes it.
+    * (Element names are already shared by the SAX parser)  Off by default, since it costs some time.
+    * @param sharing  true to share
+    * @return this
+    */
+   public XenParser setSharing(boolean sharing) {
+      this.sharing = sharing;
+      return this;
+   }
+
+
    public Xen parse(File file) throws IOException, SAXException {
-      current = root = null;
+      long start = starting();
       saxParser.parse(file, this);
-      return root;
+      return finished(start, file.length());
    }
 
    public Xen parse(InputSource input) throws IOException, SAXException {
-      current = root = null;
+      long start = starting();
       saxParser.parse(input, this);
-      return root;
+      return finished(start, -1);
    }
 
    public Xen parse(InputStream input) throws IOException, SAXException {
-      current = root = null;
+      long start = starting();
       saxParser.parse(input, this);
-      return root;
+      return finished(start, -1);
    }
 
    public Xen parse(String uri) throws IOException, SAXException {
-      current = root = null;
+      long start = starting();
       saxParser.parse(uri, this);
-      return root;
+      return finished(start, -1);
    }
 
+   /**
+    * Parses the characters directly, no encoding to bytes and decoding back
+    * @param text  XML, any encoding declaration is ignored
+    */
    public Xen parseText(String text) throws IOException, SAXException {
-      return this.parse(new ByteArrayInputStream(text.getBytes()));
+      long start = starting();
+      saxParser.parse(new InputSource(new StringReader(text)), this);
+      return finished(start, text.length());
+   }
+
+   /**
+    * Parses bytes without copying them
+    * @param bytes   the encoding is detected as usual, from a BOM or the declaration, else UTF-8
+    * @param offset  of the first byte
+    * @param length  number of bytes
+    */
+   public Xen parse(byte[] bytes, int offset, int length) throws IOException, SAXException {
+      long start = starting();
+      saxParser.parse(new ByteArrayInputStream(bytes, offset, length), this);
+      return finished(start, length);
+   }
+
+   /**
+    * Parses the remaining bytes, leaving the buffer's position at its limit.  Heap buffers are not copied.
+    * @param bytes  the encoding is detected as usual, from a BOM or the declaration, else UTF-8
+    */
+   public Xen parse(ByteBuffer bytes) throws IOException, SAXException {
+      Xen result;
+      if (bytes.hasArray())
+         result = parse(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      else {
+         long start = starting();
+         saxParser.parse(new ByteBufferInputStream(bytes.duplicate()), this);
+         result = finished(start, bytes.remaining());
+      }
+
+      bytes.position(bytes.limit());
+      return result;
+   }
+
+
+   // resets for a new parse, returns the start time if metrics are enabled
+   private long starting() {
+      current = root = null;
+      elementCount = 0;
+      strings.clear();
+      attributeMaps.clear();
+      return XenMetrics.get().isEnabled() ? System.nanoTime() : 0L;
+   }
+
+   private Xen finished(long start, long size) {
+      strings.clear();   // so they may be garbage collected with the tree
+      attributeMaps.clear();
+      if (start != 0L) {
+         XenMetrics metrics = XenMetrics.get();
+         if (metrics.isEnabled())
+            metrics.parsed("XenParser", System.nanoTime() - start, size, elementCount);
+      }
+      return root;
+   }
+
+
+   // for direct ByteBuffers, which have no array
+   static final class ByteBufferInputStream extends InputStream {
+      final ByteBuffer buffer;
+
+      ByteBufferInputStream(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (len == 0)
+            return 0;
+         if (!buffer.hasRemaining())
+            return -1;
+         len = Math.min(len, buffer.remaining());
+         buffer.get(b, off, len);
+         return len;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
    }
 
 
@@ -102,13 +213,17 @@ public class XenParser extends DefaultHandler2 {
 
       String name = qualifiedName.length() > 0 ? qualifiedName : localName;   // prefer qualifiedName
 
-      Xen child = new Xen(name, current);
-      child.setAttributes(attrs);
+      Xen child = new Xen(name, null);
+      elementCount++;
+      if (sharing)
+         child.attrs = sharedAttributes(attrs);
+      else
+         child.setAttributes(attrs);   // before it has a parent, so there are no ancestors to notify
 
       if (current == null)
          root = child;
       else
-         current.append(child);
+         current.appendNew(child);
 
       current = child; // go down...
    }
@@ -116,9 +231,50 @@ public class XenParser extends DefaultHandler2 {
    @Override
    public void endElement(String uri, String sName, String qName) throws SAXException {
       current.trimText(this.trimWhitespace);
+      if (sharing && (current.text.length() > 0))
+         current.text = shared(current.text);
       current = current.parent;  // move up
    }
 
+
+   // the canonical instance equal to s
+   private String shared(String s) {
+      String canonical = strings.get(s);
+      if (canonical == null)
+         strings.put(s, canonical = s);
+      return canonical;
+   }
+
+   // the canonical Map equal to inAttrs, with names as in Xen.setAttributes()
+   private Map<String, String> sharedAttributes(Attributes inAttrs) {
+      int count = inAttrs.getLength();
+      if (count == 0)
+         return Xen.NO_ATTRS;
+
+      Xen.SharedAttributes attrs = new Xen.SharedAttributes((int) (count / 0.75f) + 1);
+      for (int i = 0; i < count; i++) {
+         String name = inAttrs.getLocalName(i);
+         if (name.length() == 0)
+            name = inAttrs.getQName(i);
+         attrs.put(name, shared(inAttrs.getValue(i)));
+      }
+
+      Xen.SharedAttributes canonical = attributeMaps.get(attrs);
+      if (canonical == null)
+         attributeMaps.put(attrs, canonical = attrs);
+      else if (!sameOrder(canonical, attrs))
+         return attrs;  // Map.equals() ignores order, but we keep the document's
+      return canonical;
+   }
+
+   private static boolean sameOrder(Map<String, String> a, Map<String, String> b) {
+      Iterator<String> bNames = b.keySet().iterator();
+      for (String name : a.keySet())
+         if (!name.equals(bNames.next()))
+            return false;
+      return true;
+   }
+
    @Override
    public void characters(char[] ch, int start, int length) throws SAXException {
       String s = new String(ch, start, length);
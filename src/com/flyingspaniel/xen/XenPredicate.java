@@ -2,6 +2,8 @@ package com.flyingspaniel.xen;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -32,10 +34,121 @@ public interface XenPredicate {
    public static XenPredicate LAST = new Index(-1);
 
 
+   /**
+    * A predicate that tests each candidate on its own, knowing only its position.
+    * Stops early once the position is past maxPosition().
+    */
+   public static abstract class Filter implements XenPredicate {
+
+      /**
+       * Test one candidate
+       * @param xen       candidate
+       * @param position  1-based position within the candidates, as per W3C position()
+       * @param size      number of candidates, as per W3C last().  Unknown (-1) if usesSize() is false
+       * @return true to keep it
+       */
+      public abstract boolean accept(Xen xen, int position, int size);
+
+      /**
+       * @return  no candidate beyond this position can be accepted
+       */
+      public int maxPosition() {
+         return Integer.MAX_VALUE;
+      }
+
+      /**
+       * @return  whether accept() needs to know the number of candidates
+       */
+      public boolean usesSize() {
+         return false;
+      }
+
+      /**
+       * @return  whether accept() looks only at the candidate and its descendants, not its ancestors, e.g. [../@flag]
+       */
+      public boolean isLocal() {
+         return true;
+      }
+
+      /**
+       * @return  a Filter with the same accept(), to test the candidates of one evaluation on one thread.
+       *          It may keep state, e.g. a Matcher, which is dropped afterwards.  By default, this.
+       */
+      public Filter begin() {
+         return this;
+      }
+
+      public List<Xen> apply(List<Xen> inList) {
+         List<Xen> outList = new ArrayList<Xen>();
+         int size = inList.size();
+         int max = Math.min(size, maxPosition());
+         Filter filter = begin();
+         for (int i = 0; i < max; i++) {
+            Xen in = inList.get(i);
+            if (filter.accept(in, i + 1, size))
+               outList.add(in);
+         }
+         return outList;
+      }
+   }
+
+
+   /**
+    * Several predicates in a row, e.g. book[price&gt;35][position()&lt;=10].  Each applies to the results of the previous.
+    * If possible, candidates are streamed through all the predicates, stopping as soon as no more can be accepted.
+    */
+   public static class Chain implements XenPredicate {
+
+      final XenPredicate[] predicates;
+      final boolean streamable;
+
+      public Chain(XenPredicate... predicates) {
+         this.predicates = predicates;
+
+         boolean allFilters = true;
+         for (int i = 0; i < predicates.length; i++) {
+            if (!(predicates[i] instanceof Filter) || ((i > 0) && ((Filter) predicates[i]).usesSize()))
+               allFilters = false;
+         }
+         streamable = allFilters;
+      }
+
+      public List<Xen> apply(List<Xen> inList) {
+         if (!streamable) {
+            for (XenPredicate predicate : predicates)
+               inList = predicate.apply(inList);
+            return inList;
+         }
+
+         List<Xen> outList = new ArrayList<Xen>();
+         int[] positions = new int[predicates.length];
+         int size = inList.size();
+         Filter[] begun = new Filter[predicates.length];
+         for (int p = 0; p < predicates.length; p++)
+            begun[p] = ((Filter) predicates[p]).begin();
+
+         candidates:
+         for (Xen in : inList) {
+            for (int p = 0; p < predicates.length; p++) {
+               Filter filter = (Filter) predicates[p];
+               int position = ++positions[p];
+               if (position > filter.maxPosition())
+                  break candidates;  // nothing more can get past this one
+               if (!begun[p].accept(in, position, (p == 0) ? size : -1))
+                  continue candidates;
+            }
+            outList.add(in);
+         }
+
+         return outList;
+      }
+   }
+
+
    /**
     * 0-based index, negatives values are treated as last() + index
     */
-   public static class Index implements XenPredicate {
+   public static class Index extends Filter {
 
       final int index;
 
@@ -49,13 +162,27 @@ public interface XenPredicate {
          outList.add(one);
          return outList;
       }
+
+      public boolean accept(Xen xen, int position, int size) {
+         return (index >= 0) ? (position == index + 1) : (position == size + index + 1);
+      }
+
+      @Override
+      public int maxPosition() {
+         return (index >= 0) ? index + 1 : Integer.MAX_VALUE;
+      }
+
+      @Override
+      public boolean usesSize() {
+         return index < 0;
+      }
    }
 
 
    /**
     * True if the Attribute exists (has a value > "")
     */
-   public static class AttributeExists implements XenPredicate {
+   public static class AttributeExists extends Filter {
 
       final String name;
 
@@ -63,41 +190,155 @@ public interface XenPredicate {
          this.name = name;
       }
 
-      public List<Xen> apply(List<Xen> inList) {
-         List<Xen> outList = new ArrayList<Xen>();
-         for (Xen in : inList) {
-            if (in.attribute(name).length() > 0)
-               outList.add(in);
-         }
-         return outList;
+      public boolean accept(Xen xen, int position, int size) {
+         return xen.attribute(name).length() > 0;
       }
 
    }
 
 
 
-   static abstract class Matches implements XenPredicate {
+   /**
+    * How a Matches predicate compares.  Regular expressions of a simple form (literal, prefix.*, .*suffix or .*text.*)
+    * are converted to EQUALS, STARTS_WITH, ENDS_WITH or CONTAINS, and use plain String methods.
+    */
+   public enum MatchType { EQUALS, STARTS_WITH, ENDS_WITH, CONTAINS, REGEX }
+
+
+   static abstract class Matches extends Filter {
+
+      // compiled Patterns are shared between Xpaths.  Crudely bounded: if it gets too big we just start over.
+      static final int MAX_PATTERNS = 1000;
+      static final ConcurrentHashMap<String, Pattern> PATTERNS = new ConcurrentHashMap<String, Pattern>();
+
+      static final String REGEX_META = "\\.[]{}()*+?^$|";
+      static final String ANY = ".*";
+
       final String value;
-      final Pattern pattern;
+      final MatchType type;
+      final Pattern pattern;   // always non-null for a regex, even if type is a "fast path", for text with line terminators
 
       Matches(String value, boolean isRegex) {
-         this.value = value;
-         if (isRegex) { // regex
-            pattern = Pattern.compile(value);
+         if (isRegex) {
+            pattern = compile(value);
+            String literal = stripAnchors(value);
+            if (isLiteral(literal)) {
+               this.type = MatchType.EQUALS;
+            } else if (literal.startsWith(ANY) && literal.endsWith(ANY) && (literal.length() >= 4) && isLiteral(literal.substring(2, literal.length() - 2))) {
+               literal = literal.substring(2, literal.length() - 2);
+               this.type = MatchType.CONTAINS;
+            } else if (literal.startsWith(ANY) && isLiteral(literal.substring(2))) {
+               literal = literal.substring(2);
+               this.type = MatchType.ENDS_WITH;
+            } else if (literal.endsWith(ANY) && isLiteral(literal.substring(0, literal.length() - 2))) {
+               literal = literal.substring(0, literal.length() - 2);
+               this.type = MatchType.STARTS_WITH;
+            } else {
+               this.type = MatchType.REGEX;
+            }
+            this.value = (type == MatchType.REGEX) ? value : literal;
          }
          else {
+            this.value = value;
+            this.type = MatchType.EQUALS;
             pattern = null;
          }
       }
 
+      Matches(String value, MatchType type) {
+         this.value = value;
+         this.type = type;
+         pattern = (type == MatchType.REGEX) ? compile(value) : null;
+      }
+
+      /**
+       * The String to be tested
+       * @param in  candidate
+       * @return never null
+       */
+      abstract String target(Xen in);
+
+
+      public boolean accept(Xen xen, int position, int size) {
+         String input = target(xen);
+         return needsMatcher(input) ? pattern.matcher(input).matches() : isMatch(input);
+      }
+
+      /**
+       * @return  if there is a Pattern, a Filter which reuses one Matcher for all the candidates
+       */
+      @Override
+      public Filter begin() {
+         if (pattern == null)
+            return this;
+
+         final Matcher matcher = pattern.matcher("");
+         return new Filter() {
+            public boolean accept(Xen xen, int position, int size) {
+               String input = target(xen);
+               return needsMatcher(input) ? matcher.reset(input).matches() : isMatch(input);
+            }
+         };
+      }
+
+      boolean needsMatcher(String input) {
+         return (type == MatchType.REGEX) || ((pattern != null) && (type != MatchType.EQUALS) && hasLineTerminator(input));
+      }
+
+
       boolean isMatch(String input) {
-         return (pattern != null) ? pattern.matcher(input).matches() : value.equals(input);
+         switch (type) {
+            case EQUALS:      return value.equals(input);
+            case STARTS_WITH: return input.startsWith(value);
+            case ENDS_WITH:   return input.endsWith(value);
+            case CONTAINS:    return input.contains(value);
+            default:          return pattern.matcher(input).matches();
+         }
+      }
+
+
+      static Pattern compile(String regex) {
+         Pattern pattern = PATTERNS.get(regex);
+         if (pattern == null) {
+            if (PATTERNS.size() >= MAX_PATTERNS)
+               PATTERNS.clear();
+            pattern = Pattern.compile(regex);
+            PATTERNS.put(regex, pattern);
+         }
+
+         return pattern;
+      }
+
+      // since matches() is anchored anyway, a leading ^ or trailing $ changes nothing
+      static String stripAnchors(String regex) {
+         if (regex.startsWith("^"))
+            regex = regex.substring(1);
+         if (regex.endsWith("$") && !regex.endsWith("\\$"))
+            regex = regex.substring(0, regex.length() - 1);
+         return regex;
+      }
+
+      static boolean isLiteral(String s) {
+         for (int i = 0; i < s.length(); i++)
+            if (REGEX_META.indexOf(s.charAt(i)) >= 0)
+               return false;
+         return true;
+      }
+
+      // . does not match these, so .* fast paths would be wrong
+      static boolean hasLineTerminator(String s) {
+         for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029'))
+               return true;
+         }
+         return false;
       }
    }
 
 
    /**
-    * True if the Attribute matches value.  Currently just supports equals(), no regex...
+    * True if the Attribute matches value.  If EQUALS, Xpath will use an AttributeIndex if one exists.
     */
    public static class AttributeMatches extends Matches {
 
@@ -108,20 +349,20 @@ public interface XenPredicate {
          this.name = name;
       }
 
-      public List<Xen> apply(List<Xen> inList) {
-         List<Xen> outList = new ArrayList<Xen>();
-         for (Xen in : inList) {
-            if (isMatch(in.attribute(name)))
-               outList.add(in);
-         }
-         return outList;
+      public AttributeMatches(String name, String value, MatchType type) {
+         super(value, type);
+         this.name = name;
+      }
+
+      String target(Xen in) {
+         return in.attribute(name);
       }
 
    }
 
 
    /**
-    * True if the Text matches value.  Currently just supports equals(), no regex...
+    * True if the Text matches value.
     */
    public static class TextMatches extends Matches {
 
@@ -129,13 +370,12 @@ public interface XenPredicate {
          super(value, isRegex);
       }
 
-      public List<Xen> apply(List<Xen> inList) {
-         List<Xen> outList = new ArrayList<Xen>();
-         for (Xen in : inList) {
-            if (isMatch(in.text))
-               outList.add(in);
-         }
-         return outList;
+      public TextMatches(String value, MatchType type) {
+         super(value, type);
+      }
+
+      String target(Xen in) {
+         return in.text;
       }
 
    }
@@ -0,0 +1,536 @@
+package com.flyingspaniel.xen;
+
+import org.xml.sax.SAXException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+
+/**
+ * A non-blocking, push style parser.  Instead of a thread waiting on an InputStream, feed() it chunks of bytes as
+ * they arrive (say, from an asynchronous network callback), then call finish() after the last one.  Example use:
+ * <pre><code>
+    XenPushParser parser = new XenPushParser();
+    // as each chunk arrives
+    parser.feed(byteBuffer);
+    // after the last one
+    Xen root = parser.finish();
+ * </code></pre>
+ *
+ * For very large documents, setRecordListener() hands over each completed "record" element as soon as it is parsed,
+ * then removes it from the tree, so memory stays bounded.
+ *
+ * This is a small, non-validating parser, handling elements, attributes, text, CDATA, comments, processing instructions
+ * and the five predefined and numeric character entities.  A DOCTYPE is skipped, so entities declared there are not supported.
+ * Bytes are decoded with a single Charset (default UTF-8), the encoding declaration is not read.
+ *
+ * One instance handles one document at a time (see reset()), and calls to feed() must not overlap.
+ * Thousands of instances can be in use at once, since none of them hold a thread.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenPushParser {
+
+   /**
+    * Receives completed record elements, see setRecordListener()
+    */
+   public interface RecordListener {
+      void record(Xen record) throws SAXException;
+   }
+
+
+   static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   protected final CharsetDecoder decoder;
+   protected boolean trimWhitespace = true;
+   protected String recordName = null;
+   protected RecordListener recordListener = null;
+
+   private ByteBuffer carry = null;                            // undecoded bytes from the end of the last chunk
+   private final StringBuilder pending = new StringBuilder();  // decoded but not yet parsed
+   private final StringBuilder textBuffer = new StringBuilder();  // text for current, not yet added
+   private boolean started;
+   private Xen root;
+   private Xen current;
+   private long consumed;  // chars parsed so far, for error messages
+
+
+   public XenPushParser(Charset charset) {
+      decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+   }
+
+   public XenPushParser() {
+      this(UTF_8);
+   }
+
+
+   public XenPushParser setTrimWhitespace(boolean trimWhitespace) {
+      this.trimWhitespace = trimWhitespace;
+      return this;
+   }
+
+   /**
+    * Every element named recordName (except the root) is passed to the listener when its end tag is parsed,
+    * then removed from its parent.  (Like Xen.remove(), its parent() still works)
+    * @param recordName  qualified name
+    * @param listener    null to keep all elements in the tree
+    * @return this
+    */
+   public XenPushParser setRecordListener(String recordName, RecordListener listener) {
+      this.recordName = recordName;
+      this.recordListener = listener;
+      return this;
+   }
+
+
+   /**
+    * Prepare to parse another document.  Settings are kept.
+    * @return this
+    */
+   public XenPushParser reset() {
+      decoder.reset();
+      carry = null;
+      pending.setLength(0);
+      textBuffer.setLength(0);
+      started = false;
+      root = current = null;
+      consumed = 0;
+      return this;
+   }
+
+
+   /**
+    * Parse the next chunk
+    * @param bytes  all remaining bytes are consumed
+    * @return this
+    * @throws SAXException if the XML or encoding is malformed
+    */
+   public XenPushParser feed(ByteBuffer bytes) throws SAXException {
+      if (carry != null) {
+         ByteBuffer combined = ByteBuffer.allocate(carry.remaining() + bytes.remaining());
+         combined.put(carry).put(bytes).flip();
+         carry = null;
+         bytes = combined;
+      }
+
+      CharBuffer chars = CharBuffer.allocate((int) (bytes.remaining() * decoder.maxCharsPerByte()) + 1);
+      decode(bytes, chars, false);
+
+      if (bytes.hasRemaining()) {
+         carry = ByteBuffer.allocate(bytes.remaining());
+         carry.put(bytes).flip();
+      }
+
+      pending.append(chars.array(), 0, chars.position());
+      parse(false);
+      return this;
+   }
+
+   public XenPushParser feed(byte[] bytes, int offset, int length) throws SAXException {
+      return feed(ByteBuffer.wrap(bytes, offset, length));
+   }
+
+   public XenPushParser feed(byte[] bytes) throws SAXException {
+      return feed(ByteBuffer.wrap(bytes));
+   }
+
+
+   /**
+    * Call after the last chunk has been fed
+    * @return  root Xen (if there is a RecordListener, without the records)
+    * @throws SAXException if the document is incomplete or malformed
+    */
+   public Xen finish() throws SAXException {
+      ByteBuffer bytes = (carry != null) ? carry : ByteBuffer.allocate(0);
+      carry = null;
+      CharBuffer chars = CharBuffer.allocate(bytes.remaining() * 2 + 16);
+      decode(bytes, chars, true);
+      if (decoder.flush(chars).isError())
+         throw new SAXException("incomplete character at end of input");
+      pending.append(chars.array(), 0, chars.position());
+
+      parse(true);
+      if (root == null)
+         throw new SAXException("no root element");
+      if (current != null)
+         throw new SAXException("incomplete document, <" + current.name + "> was not closed");
+
+      return root;
+   }
+
+
+   /**
+    * @return root, may be null or incomplete before finish()
+    */
+   public Xen getRoot() {
+      return root;
+   }
+
+
+   private void decode(ByteBuffer bytes, CharBuffer chars, boolean endOfInput) throws SAXException {
+      CoderResult result = decoder.decode(bytes, chars, endOfInput);
+      if (result.isError()) {
+         try {
+            result.throwException();
+         }
+         catch (CharacterCodingException cce) {
+            throw new SAXException("cannot decode input near char " + (consumed + pending.length()), cce);
+         }
+      }
+   }
+
+
+   // parses as much of pending as is complete, then discards it
+   private void parse(boolean endOfInput) throws SAXException {
+      int pos = 0;
+      if (!started && (pending.length() > 0)) {
+         started = true;
+         if (pending.charAt(0) == '\uFEFF')  // byte order mark
+            pos = 1;
+      }
+
+      int length = pending.length();
+      while (pos < length) {
+         int next;
+         if (pending.charAt(pos) != '<') {
+            int lt = pending.indexOf("<", pos);
+            next = (lt >= 0) ? lt : (endOfInput ? length : safeTextEnd(pos, length));
+            text(pos, next);
+         }
+         else {
+            next = markup(pos, length, endOfInput);
+            if (next < 0)
+               break;   // wait for more input
+         }
+
+         if (next == pos)
+            break;
+         pos = next;
+      }
+
+      if (endOfInput && (pos < length))
+         throw error("incomplete markup", pos);
+
+      consumed += pos;
+      pending.delete(0, pos);
+   }
+
+
+   // text without a following '<' may be used, except for a partial entity reference or "\r\n" at the end
+   private int safeTextEnd(int pos, int length) {
+      if (pending.charAt(length - 1) == '\r')
+         length--;
+      int amp = pending.lastIndexOf("&", length - 1);
+      if ((amp >= pos) && (indexOf(';', amp, length) < 0))
+         return amp;
+      return length;
+   }
+
+
+   /**
+    * Handles the markup at pos, which is a '<'
+    * @return the index after it, or -1 if it is not yet complete
+    */
+   private int markup(int pos, int length, boolean endOfInput) throws SAXException {
+      if (startsWith("<?", pos, length))
+         return skipTo("?>", pos + 2);
+
+      if (startsWith("<!--", pos, length))
+         return skipTo("-->", pos + 4);
+
+      if (startsWith("<![CDATA[", pos, length)) {
+         int end = pending.indexOf("]]>", pos + 9);
+         if (end < 0)
+            return -1;
+         if (current == null)
+            throw error("CDATA outside of the root element", pos);
+         textBuffer.append(pending, pos + 9, end);
+         return end + 3;
+      }
+
+      if (startsWith("<!", pos, length)) {
+         if (!endOfInput && (length - pos < 9)) {
+            String start = pending.substring(pos, length);
+            if ("<![CDATA[".startsWith(start) || "<!--".startsWith(start))
+               return -1;  // can't tell yet
+         }
+         return skipDoctype(pos + 2, length);
+      }
+
+      int end = tagEnd(pos + 1, length);
+      if (end < 0)
+         return -1;
+
+      if ((pos + 1 < length) && (pending.charAt(pos + 1) == '/'))
+         endTag(pending.substring(pos + 2, end).trim(), pos);
+      else
+         startTag(pos + 1, end);
+
+      return end + 1;
+   }
+
+
+   // true if there are no entity references or carriage returns to change
+   private boolean isPlain(int from, int to) {
+      for (int i = from; i < to; i++) {
+         char c = pending.charAt(i);
+         if ((c == '&') || (c == '\r'))
+            return false;
+      }
+      return true;
+   }
+
+   // unlike StringBuilder.indexOf(), stops at to
+   private int indexOf(char c, int from, int to) {
+      for (int i = from; i < to; i++)
+         if (pending.charAt(i) == c)
+            return i;
+      return -1;
+   }
+
+   private boolean startsWith(String prefix, int pos, int length) {
+      if (length - pos < prefix.length())
+         return false;
+      for (int i = 0; i < prefix.length(); i++)
+         if (pending.charAt(pos + i) != prefix.charAt(i))
+            return false;
+      return true;
+   }
+
+   private int skipTo(String terminator, int from) {
+      int end = pending.indexOf(terminator, from);
+      return (end < 0) ? -1 : end + terminator.length();
+   }
+
+   // skips a DOCTYPE, including any internal subset in [ ]
+   private int skipDoctype(int from, int length) {
+      int brackets = 0;
+      char quote = 0;
+      for (int i = from; i < length; i++) {
+         char c = pending.charAt(i);
+         if (quote != 0) {
+            if (c == quote)
+               quote = 0;
+         }
+         else if ((c == '"') || (c == '\''))
+            quote = c;
+         else if (c == '[')
+            brackets++;
+         else if (c == ']')
+            brackets--;
+         else if ((c == '>') && (brackets == 0))
+            return i + 1;
+      }
+      return -1;
+   }
+
+   // index of the '>' ending a tag, ignoring any inside attribute values, -1 if not there yet
+   private int tagEnd(int from, int length) {
+      char quote = 0;
+      for (int i = from; i < length; i++) {
+         char c = pending.charAt(i);
+         if (quote != 0) {
+            if (c == quote)
+               quote = 0;
+         }
+         else if ((c == '"') || (c == '\''))
+            quote = c;
+         else if (c == '>')
+            return i;
+      }
+      return -1;
+   }
+
+
+   private void text(int from, int to) throws SAXException {
+      if (current != null) {
+         if ((textBuffer.length() == 0) && (current.text.length() == 0) && isPlain(from, to))
+            current.text = pending.substring(from, to);  // the usual case, skip the copy into textBuffer
+         else
+            appendDecoded(textBuffer, from, to, false);
+         return;
+      }
+
+      for (int i = from; i < to; i++)
+         if (!Character.isWhitespace(pending.charAt(i)))
+            throw error("text outside of the root element", i);
+   }
+
+
+   // from is just after the '<', gt is the '>'
+   private void startTag(int from, int gt) throws SAXException {
+      if ((root != null) && (current == null))
+         throw error("more than one root element", from - 1);
+
+      boolean empty = pending.charAt(gt - 1) == '/';
+      int end = empty ? gt - 1 : gt;
+
+      int i = from;
+      while ((i < end) && !Character.isWhitespace(pending.charAt(i)))
+         i++;
+      if (i == from)
+         throw error("missing element name", from);
+
+      Xen child = new Xen(pending.substring(from, i), null);  // parent is null so there are no ancestors to notify
+      while (true) {
+         while ((i < end) && Character.isWhitespace(pending.charAt(i)))
+            i++;
+         if (i >= end)
+            break;
+
+         int nameStart = i;
+         while ((i < end) && (pending.charAt(i) != '=') && !Character.isWhitespace(pending.charAt(i)))
+            i++;
+         String attrName = pending.substring(nameStart, i);
+         while ((i < end) && Character.isWhitespace(pending.charAt(i)))
+            i++;
+         if ((i >= end) || (pending.charAt(i) != '='))
+            throw error("missing = after attribute " + attrName, i);
+         i++;
+         while ((i < end) && Character.isWhitespace(pending.charAt(i)))
+            i++;
+         char quote = (i < end) ? pending.charAt(i) : 0;
+         if ((quote != '"') && (quote != '\''))
+            throw error("attribute " + attrName + " is not quoted", i);
+         int valueEnd = indexOf(quote, i + 1, end);
+         if (valueEnd < 0)
+            throw error("unterminated value for attribute " + attrName, i);
+
+         if (child.attrs == Xen.NO_ATTRS)
+            child.attrs = new LinkedHashMap<String, String>();
+         child.attrs.put(attrName, attributeValue(i + 1, valueEnd));
+         i = valueEnd + 1;
+      }
+
+      if (current == null)
+         root = child;
+      else {
+         flushText();
+         current.appendNew(child);
+      }
+
+      current = child;
+      if (empty)
+         endElement();
+   }
+
+
+   private String attributeValue(int from, int to) throws SAXException {
+      if (isPlain(from, to) && (indexOf('\n', from, to) < 0) && (indexOf('\t', from, to) < 0))
+         return pending.substring(from, to);
+
+      StringBuilder value = new StringBuilder(to - from);
+      appendDecoded(value, from, to, true);
+      return value.toString();
+   }
+
+
+   private void endTag(String name, int pos) throws SAXException {
+      if (current == null)
+         throw error("unexpected </" + name + ">", pos);
+      if (!current.name.equals(name))
+         throw error("</" + name + "> does not match <" + current.name + ">", pos);
+      endElement();
+   }
+
+
+   private void endElement() throws SAXException {
+      flushText();
+      Xen ended = current;
+      ended.trimText(trimWhitespace);
+      current = ended.parent;
+
+      if ((recordListener != null) && (current != null) && ended.name.equals(recordName)) {
+         current.children.remove(current.children.size() - 1);  // it is always the last child
+         recordListener.record(ended);
+      }
+   }
+
+
+   private void flushText() {
+      if (textBuffer.length() > 0) {
+         current.text = (current.text.length() == 0) ? textBuffer.toString() : current.text + textBuffer;
+         textBuffer.setLength(0);
+      }
+   }
+
+
+   // appends pending[from, to) replacing entity references, which are not normalized, so &#10; in an attribute stays a newline
+   private void appendDecoded(StringBuilder sb, int from, int to, boolean attribute) throws SAXException {
+      int amp = indexOf('&', from, to);
+      while (amp >= 0) {
+         appendLines(sb, from, amp, attribute);
+         int semi = indexOf(';', amp, to);
+         if (semi < 0)
+            throw error("unterminated entity reference", amp);
+         sb.append(entity(pending.substring(amp + 1, semi), amp));
+         from = semi + 1;
+         amp = indexOf('&', from, to);
+      }
+      appendLines(sb, from, to, attribute);
+   }
+
+
+   // appends pending[from, to) changing "\r\n" and "\r" to "\n", as XML requires.
+   // In an attribute, each line end and tab then becomes a space (XML 1.0 section 3.3.3)
+   private void appendLines(StringBuilder sb, int from, int to, boolean attribute) {
+      if (attribute) {
+         for (int i = from; i < to; i++) {
+            char c = pending.charAt(i);
+            if (c == '\r') {
+               if ((i + 1 < to) && (pending.charAt(i + 1) == '\n'))
+                  i++;
+               sb.append(' ');
+            }
+            else
+               sb.append(((c == '\n') || (c == '\t')) ? ' ' : c);
+         }
+         return;
+      }
+
+      int cr = indexOf('\r', from, to);
+      while (cr >= 0) {
+         sb.append(pending, from, cr).append('\n');
+         from = ((cr + 1 < to) && (pending.charAt(cr + 1) == '\n')) ? cr + 2 : cr + 1;
+         cr = indexOf('\r', from, to);
+      }
+      sb.append(pending, from, to);
+   }
+
+
+   private String entity(String name, int pos) throws SAXException {
+      if ("lt".equals(name)) return "<";
+      if ("gt".equals(name)) return ">";
+      if ("amp".equals(name)) return "&";
+      if ("quot".equals(name)) return "\"";
+      if ("apos".equals(name)) return "'";
+
+      try {
+         if (name.startsWith("#x"))
+            return new String(Character.toChars(Integer.parseInt(name.substring(2), 16)));
+         if (name.startsWith("#"))
+            return new String(Character.toChars(Integer.parseInt(name.substring(1))));
+      }
+      catch (IllegalArgumentException iae) {  // includes NumberFormatException
+         throw error("bad character reference &" + name + ";", pos);
+      }
+
+      throw error("unknown entity &" + name + ";", pos);
+   }
+
+
+   private SAXException error(String message, int pos) {
+      int to = Math.min(pending.length(), pos + 20);
+      return new SAXException(message + " at char " + (consumed + pos) + " near \"" + pending.substring(pos, to) + "\"");
+   }
+
+}
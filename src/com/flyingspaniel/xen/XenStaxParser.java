@@ -0,0 +1,201 @@
+package com.flyingspaniel.xen;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Alternative to XenParser, using a pull based javax.xml.stream.XMLStreamReader instead of SAX.
+ * Produces the same tree of Xens, but can cheaply skip unwanted subtrees, and can build a Xen from part of a
+ * larger stream that you are already reading.  Example use:
+ * <pre><code>
+    XenStaxParser parser = new XenStaxParser().skipElements("description", "reviews");
+    Xen root = parser.parse(someKindOfInput);
+ * </code></pre>
+ *
+ * Unlike XenParser, one instance may be used by several threads at once, as long as the settings are not changed.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenStaxParser {
+
+   protected final XMLInputFactory factory;
+   protected boolean trimWhitespace = true;
+   protected final Set<String> skipped = new HashSet<String>();
+
+
+   /**
+    * Constructor
+    * @param namespaceAware  if false (like XenParser) names keep their prefix, and xmlns declarations are attributes
+    */
+   public XenStaxParser(boolean namespaceAware) {
+      this(XMLInputFactory.newInstance());
+      factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, namespaceAware);
+   }
+
+   public XenStaxParser() {
+      this(false);
+   }
+
+   /**
+    * Should you want complete control to provide your own factory
+    * @param factory  non-null
+    */
+   public XenStaxParser(XMLInputFactory factory) {
+      this.factory = factory;
+   }
+
+
+   public XenStaxParser setTrimWhitespace(boolean trimWhitespace) {
+      this.trimWhitespace = trimWhitespace;
+      return this;
+   }
+
+   /**
+    * Elements with these names, and everything inside them, are left out of the tree
+    * @param names  (qualified) element names
+    * @return this
+    */
+   public XenStaxParser skipElements(String... names) {
+      skipped.addAll(Arrays.asList(names));
+      return this;
+   }
+
+
+   public Xen parse(File file) throws IOException, XMLStreamException {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+         return parseAll(factory.createXMLStreamReader(file.toURI().toString(), in));
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   public Xen parse(InputStream input) throws XMLStreamException {
+      return parseAll(factory.createXMLStreamReader(input));
+   }
+
+   public Xen parse(Reader input) throws XMLStreamException {
+      return parseAll(factory.createXMLStreamReader(input));
+   }
+
+   public Xen parseText(String text) throws XMLStreamException {
+      return parse(new StringReader(text));
+   }
+
+
+   // parses an entire document, then closes the reader (but not the underlying input)
+   protected Xen parseAll(XMLStreamReader reader) throws XMLStreamException {
+      try {
+         return parse(reader);
+      }
+      finally {
+         reader.close();
+      }
+   }
+
+
+   /**
+    * Builds one Xen from a reader you are already using, e.g. to process a huge file one record at a time.
+    * If the reader is not at a START_ELEMENT, it first advances to the next one.
+    * On return the reader is at the matching END_ELEMENT.  The reader is not closed.
+    *
+    * @param reader  non-null
+    * @return  Xen, null if there were no more elements
+    * @throws XMLStreamException
+    */
+   public Xen parse(XMLStreamReader reader) throws XMLStreamException {
+      while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+         if (!reader.hasNext())
+            return null;
+         reader.next();
+      }
+
+      Xen root = newXen(reader, null);
+      Xen current = root;
+      while (current != null) {
+         switch (reader.next()) {
+
+            case XMLStreamConstants.START_ELEMENT:
+               if (skip(qualifiedName(reader.getPrefix(), reader.getLocalName()), current))
+                  skipSubtree(reader);
+               else {
+                  Xen child = newXen(reader, null);  // parent is null so there are no ancestors to notify
+                  current.appendNew(child);
+                  current = child;
+               }
+               break;
+
+            case XMLStreamConstants.END_ELEMENT:
+               current.trimText(trimWhitespace);
+               current = (current == root) ? null : current.parent;
+               break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+               if (current.text.length() == 0)
+                  current.text = reader.getText();
+               else
+                  current.text += reader.getText();
+               break;
+
+            default:
+               break;
+         }
+      }
+
+      return root;
+   }
+
+
+   /**
+    * Override for fancier skipping.  Default checks the names from skipElements()
+    * @param name    qualified name of the element about to be read
+    * @param parent  of that element, non-null
+    * @return  true to leave it out
+    */
+   protected boolean skip(String name, Xen parent) {
+      return !skipped.isEmpty() && skipped.contains(name);
+   }
+
+
+   protected Xen newXen(XMLStreamReader reader, Xen parent) {
+      Xen xen = new Xen(qualifiedName(reader.getPrefix(), reader.getLocalName()), parent);
+
+      int count = reader.getAttributeCount();
+      if (count > 0) {
+         Map<String, String> attrs = new LinkedHashMap<String, String>((int) (count / 0.75f) + 1);
+         for (int i = 0; i < count; i++)
+            attrs.put(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+         xen.attrs = attrs;
+      }
+
+      return xen;
+   }
+
+
+   // moves reader from a START_ELEMENT to the matching END_ELEMENT
+   protected static void skipSubtree(XMLStreamReader reader) throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0) {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+            depth++;
+         else if (event == XMLStreamConstants.END_ELEMENT)
+            depth--;
+      }
+   }
+
+
+   static String qualifiedName(String prefix, String localName) {
+      return ((prefix == null) || (prefix.length() == 0)) ? localName : prefix + ':' + localName;
+   }
+
+}
@@ -0,0 +1,299 @@
+package com.flyingspaniel.xen;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A pipeline of rules, e.g. renaming elements, dropping subtrees, or normalizing attributes,
+ * which are all applied in a single traversal of the tree.  Example use:
+ * <pre><code>
+    XenTransform transform = new XenTransform()
+          .rename("cost", "price")
+          .dropAll("items/item[@status='obsolete']")
+          .removeAttributes("item", "internalId")
+          .rule("price", new XenTransform.Rule() {
+             public Xen apply(Xen price) { return price.setText(price.text().trim()); }
+          });
+    root = transform.apply(root);
+ * </code></pre>
+ *
+ * Each Xen is offered to the rules in the order they were added, and the result of one rule is given to the next.
+ * Rules for an Xpath (see dropAll()) are matched against the tree as it was before the transform.
+ * A Xen dropped by a rule is not traversed.  The children of a replacement are traversed, the children of a dropped Xen are not.
+ *
+ * For huge documents, stream() reads, transforms and writes one record at a time, so the whole tree is never built.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenTransform {
+
+   /**
+    * One step of a transform
+    */
+   public interface Rule {
+      /**
+       * @param xen  to transform, which may be modified in place
+       * @return xen, a replacement for it, or null to drop it (and all its descendants)
+       */
+      Xen apply(Xen xen);
+   }
+
+
+   // a Rule and what it applies to
+   static final class Entry {
+      final String name;   // or Xpath.WILDCARD
+      final Xpath xpath;   // if non-null, applies to the Xens this selects
+      final Rule rule;
+
+      Entry(String name, Xpath xpath, Rule rule) {
+         this.name = name;
+         this.xpath = xpath;
+         this.rule = rule;
+      }
+
+      boolean applies(Xen xen) {
+         return Xpath.WILDCARD.equals(name) || name.equals(xen.name);
+      }
+   }
+
+   protected final List<Entry> entries = new ArrayList<Entry>();
+
+
+   /**
+    * Add a rule
+    * @param name  Xens of this name, or "*" for all
+    * @param rule  non-null
+    * @return this
+    */
+   public XenTransform rule(String name, Rule rule) {
+      entries.add(new Entry(name, null, rule));
+      return this;
+   }
+
+   /**
+    * Add a rule for the Xens selected by an Xpath, evaluated from the root of the tree being transformed
+    * @param xpath  non-null
+    * @param rule   non-null
+    * @return this
+    */
+   public XenTransform rule(Xpath xpath, Rule rule) {
+      entries.add(new Entry(Xpath.WILDCARD, xpath, rule));
+      return this;
+   }
+
+
+   /**
+    * Renames Xens.  Since the name is final, each is replaced by a new Xen with the same parent, text, attributes,
+    * userProperties, children and AttributeIndexes.
+    * @return this
+    */
+   public XenTransform rename(String from, final String to) {
+      return rule(from, new Rule() {
+         public Xen apply(Xen xen) {
+            return renamed(xen, to);
+         }
+      });
+   }
+
+
+   /**
+    * Drops all Xens with the given name, and their subtrees
+    * @return this
+    */
+   public XenTransform drop(String name) {
+      return rule(name, DROP);
+   }
+
+   /**
+    * Drops the Xens with the given name which a predicate accepts,
+    * e.g. new XenPredicate.AttributeMatches("status", "obsolete", false).  Unlike dropAll(), this also works for the records in stream().
+    * @param predicate  given each Xen on its own, so position() is always 1
+    * @return this
+    */
+   public XenTransform drop(String name, final XenPredicate predicate) {
+      return rule(name, new Rule() {
+         public Xen apply(Xen xen) {
+            return predicate.apply(Collections.singletonList(xen)).isEmpty() ? xen : null;
+         }
+      });
+   }
+
+   /**
+    * Drops all Xens selected by the path, and their subtrees
+    * @param path  Xpath, from the root
+    * @return this
+    */
+   public XenTransform dropAll(String... path) {
+      return rule(new Xpath(path), DROP);
+   }
+
+   static final Rule DROP = new Rule() {
+      public Xen apply(Xen xen) { return null; }
+   };
+
+
+   /**
+    * Renames an attribute of Xens with the given name, keeping its value
+    * @param name  element name, or "*" for all
+    * @return this
+    */
+   public XenTransform renameAttribute(String name, final String from, final String to) {
+      return rule(name, new Rule() {
+         public Xen apply(Xen xen) {
+            if (xen.hasAttribute(from)) {
+               String value = xen.attribute(from);
+               xen.removeAttributes(from).putAttributes(to, value);
+            }
+            return xen;
+         }
+      });
+   }
+
+   /**
+    * Removes attributes of Xens with the given name
+    * @param name  element name, or "*" for all
+    * @return this
+    */
+   public XenTransform removeAttributes(String name, final String... attributeNames) {
+      return rule(name, new Rule() {
+         public Xen apply(Xen xen) {
+            return xen.removeAttributes(attributeNames);
+         }
+      });
+   }
+
+
+   /**
+    * Apply all the rules, in one traversal
+    * @param root  the tree to transform, usually modified in place
+    * @return the new root, (root unless a rule replaced it), null if it was dropped
+    */
+   public Xen apply(Xen root) {
+      // the Xens selected by each Xpath, before anything changes
+      Map<Entry, Set<Xen>> selected = new IdentityHashMap<Entry, Set<Xen>>();
+      for (Entry entry : entries) {
+         if (entry.xpath != null) {
+            Set<Xen> set = Collections.newSetFromMap(new IdentityHashMap<Xen, Boolean>());
+            set.addAll(entry.xpath.evaluate(root));
+            selected.put(entry, set);
+         }
+      }
+
+      Xen newRoot = applyRules(root, selected);
+      ArrayDeque<Xen> stack = new ArrayDeque<Xen>();
+      if (newRoot != null)
+         stack.push(newRoot);
+
+      while (!stack.isEmpty()) {
+         Xen xen = stack.pop();
+         List<Xen> children = xen.children;
+         List<Xen> results = null;   // allocated only once a child changes
+         for (int i = 0; i < children.size(); i++) {
+            Xen child = children.get(i);
+            Xen result = applyRules(child, selected);
+            if ((result != child) && (results == null)) {
+               results = new ArrayList<Xen>(children.size());
+               results.addAll(children.subList(0, i));
+            }
+            if ((results != null) && (result != null))
+               results.add(result);
+         }
+
+         if (results != null)
+            xen.replaceChildren(results);
+         for (int i = xen.children.size() - 1; i >= 0; i--)
+            stack.push(xen.children.get(i));
+      }
+
+      return newRoot;
+   }
+
+
+   // runs all the rules for one Xen
+   private Xen applyRules(Xen original, Map<Entry, Set<Xen>> selected) {
+      Xen xen = original;
+      for (Entry entry : entries) {
+         boolean applies = (entry.xpath != null) ? selected.get(entry).contains(original) : entry.applies(xen);
+         if (applies) {
+            xen = entry.rule.apply(xen);
+            if (xen == null)
+               return null;
+         }
+      }
+
+      return xen;
+   }
+
+
+   /**
+    * Reads a document, transforms it one record at a time, and writes the result, so the whole tree is never built.
+    * Elements outside the records are copied as is.  Each record is built by parser, transformed, written, then forgotten.
+    * Xpaths are evaluated from each record.
+    *
+    * @param reader      positioned anywhere before the root element
+    * @param parser      builds each record, e.g. new XenStaxParser()
+    * @param recordName  name of the record elements
+    * @param writer      output, which is not closed
+    * @return  the number of records read
+    */
+   public int stream(XMLStreamReader reader, XenStaxParser parser, String recordName, XenWriter writer)
+         throws XMLStreamException, IOException {
+      int records = 0;
+      while (reader.hasNext()) {
+         switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+               String name = XenStaxParser.qualifiedName(reader.getPrefix(), reader.getLocalName());
+               if (name.equals(recordName)) {
+                  records++;
+                  Xen record = apply(parser.parse(reader));
+                  if (record != null)
+                     writer.xen(record);
+               }
+               else {
+                  writer.element(name);
+                  for (int i = 0; i < reader.getAttributeCount(); i++)
+                     writer.attribute(XenStaxParser.qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                      reader.getAttributeValue(i));
+               }
+               break;
+
+            case XMLStreamConstants.END_ELEMENT:
+               writer.end();
+               break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+               if (!reader.isWhiteSpace())
+                  writer.text(reader.getText());
+               break;
+
+            default:
+               break;
+         }
+      }
+
+      writer.flush();
+      return records;
+   }
+
+
+   /**
+    * @return a new Xen named name, with the same parent, text, attributes, userProperties, children and AttributeIndexes as xen
+    */
+   static Xen renamed(Xen xen, String name) {
+      Xen renamed = new Xen(name, xen.parent, xen.text);   // same root and depth, so adopting the children is quick
+      renamed.attrs = xen.attrs;
+      renamed.userProperties = xen.userProperties;
+      renamed.replaceChildren(xen.children);
+      for (Map.Entry<String, AttributeIndex> index : xen.indexes.entrySet())
+         renamed.attributeIndexes().put(index.getKey(),
+                                        new AttributeIndex(renamed, index.getValue().childName, index.getValue().attributeName));
+      return renamed;
+   }
+
+}
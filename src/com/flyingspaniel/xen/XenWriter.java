@@ -0,0 +1,293 @@
+package com.flyingspaniel.xen;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Writes XML as it goes, without building a tree of Xens first, so memory use stays constant however large the output.
+ * Method names follow Xen.  Example use:
+ * <pre><code>
+    XenWriter writer = new XenWriter(outputStream);
+    writer.declaration().element("catalog").attribute("version", "2");
+    for (Item item : items)
+       writer.element("item").attribute("id", item.id).text(item.name).end();
+    writer.xen(someExistingXen);   // write an existing subtree inline
+    writer.close();                // ends catalog
+ * </code></pre>
+ *
+ * Text and attribute values are escaped.  Nothing is indented.  Unlike Converter.ToXML, end tags are the standard &lt;/name&gt;.
+ * Not thread-safe.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenWriter implements Closeable, Flushable {
+
+   protected final Writer out;
+   protected final String encoding;  // for the declaration, may be null
+
+   private final char[] buffer = new char[8192];  // our own, since Writers synchronize every call
+   private int buffered = 0;
+   private final ArrayDeque<String> open = new ArrayDeque<String>();
+   private boolean inStartTag = false;   // true while attributes may still be added
+
+
+   /**
+    * Writes UTF-8 to an OutputStream
+    */
+   public XenWriter(OutputStream out) {
+      this(new OutputStreamWriter(out, Charset.forName("UTF-8")), "UTF-8");
+   }
+
+   /**
+    * @param out  output is buffered here, so this need not be
+    */
+   public XenWriter(Writer out) {
+      this(out, null);
+   }
+
+   protected XenWriter(Writer out, String encoding) {
+      this.out = out;
+      this.encoding = encoding;
+   }
+
+
+   /**
+    * Writes the &lt;?xml ... ?&gt; declaration, must come first
+    * @return this
+    */
+   public XenWriter declaration() throws IOException {
+      if (inStartTag || !open.isEmpty())
+         throw new IllegalStateException("the declaration must come first");
+      write("<?xml version=\"1.0\"");
+      if (encoding != null)
+         write(" encoding=\"" + encoding + "\"");
+      write("?>\n");
+      return this;
+   }
+
+
+   /**
+    * Start a new element, a child of the current one
+    * @param name  qualified name
+    * @return this
+    */
+   public XenWriter element(String name) throws IOException {
+      closeStartTag();
+      write('<');
+      write(name);
+      open.push(name);
+      inStartTag = true;
+      return this;
+   }
+
+   /**
+    * Shortcut for element(name).text(text).end()
+    * @return this
+    */
+   public XenWriter element(String name, String text) throws IOException {
+      return element(name).text(text).end();
+   }
+
+
+   /**
+    * Add an attribute to the element just started, before any text or children
+    * @param name   qualified name
+    * @param value  if null, nothing is written
+    * @return this
+    * @throws IllegalStateException if text or a child has already been written
+    */
+   public XenWriter attribute(String name, String value) throws IOException {
+      if (!inStartTag)
+         throw new IllegalStateException("attribute " + name + " must come right after element()");
+      if (value != null) {
+         write(' ');
+         write(name);
+         write("=\"");
+         escape(value, true);
+         write('"');
+      }
+      return this;
+   }
+
+   /**
+    * Add all attributes, like Xen.putAttributes()
+    * @return this
+    */
+   public XenWriter attributes(Map<String, String> attributes) throws IOException {
+      for (Map.Entry<String, String> attr : attributes.entrySet())
+         attribute(attr.getKey(), attr.getValue());
+      return this;
+   }
+
+
+   /**
+    * Add text to the current element
+    * @param text  escaped as needed, null is ignored
+    * @return this
+    */
+   public XenWriter text(String text) throws IOException {
+      if (open.isEmpty())
+         throw new IllegalStateException("text must be inside an element");
+      closeStartTag();
+      if (text != null)
+         escape(text, false);
+      return this;
+   }
+
+
+   /**
+    * End the current element
+    * @return this
+    * @throws IllegalStateException if there is none
+    */
+   public XenWriter end() throws IOException {
+      if (open.isEmpty())
+         throw new IllegalStateException("no element to end");
+
+      String name = open.pop();
+      if (inStartTag) {
+         write("/>");
+         inStartTag = false;
+      }
+      else {
+         write("</");
+         write(name);
+         write('>');
+      }
+      return this;
+   }
+
+   /**
+    * End all open elements
+    * @return this
+    */
+   public XenWriter endAll() throws IOException {
+      while (!open.isEmpty())
+         end();
+      return this;
+   }
+
+
+   /**
+    * Write a Xen, with all its attributes, text and descendants, as a child of the current element.
+    * As with Converter.ToDocument, each Xen's text comes before its children.
+    * @param xen  non-null
+    * @return this
+    */
+   public XenWriter xen(Xen xen) throws IOException {
+      ArrayDeque<Iterator<Xen>> stack = new ArrayDeque<Iterator<Xen>>();
+      open(xen);
+      stack.push(xen.children.iterator());
+
+      while (!stack.isEmpty()) {
+         Iterator<Xen> remaining = stack.peek();
+         if (remaining.hasNext()) {
+            Xen child = remaining.next();
+            open(child);
+            stack.push(child.children.iterator());
+         }
+         else {
+            end();
+            stack.pop();
+         }
+      }
+
+      return this;
+   }
+
+   private void open(Xen xen) throws IOException {
+      element(xen.name);
+      attributes(xen.attrs);
+      if (xen.text.length() > 0)
+         text(xen.text);
+   }
+
+
+   /**
+    * @return  how many elements are open
+    */
+   public int depth() {
+      return open.size();
+   }
+
+   public void flush() throws IOException {
+      drain();
+      out.flush();
+   }
+
+   /**
+    * Ends all open elements, then closes the underlying stream
+    */
+   public void close() throws IOException {
+      endAll();
+      drain();
+      out.close();
+   }
+
+
+   private void drain() throws IOException {
+      out.write(buffer, 0, buffered);
+      buffered = 0;
+   }
+
+   private void write(char c) throws IOException {
+      if (buffered == buffer.length)
+         drain();
+      buffer[buffered++] = c;
+   }
+
+   private void write(String s) throws IOException {
+      write(s, 0, s.length());
+   }
+
+   private void write(String s, int offset, int length) throws IOException {
+      if (length > buffer.length - buffered) {
+         drain();
+         if (length > buffer.length) {
+            out.write(s, offset, length);
+            return;
+         }
+      }
+      s.getChars(offset, offset + length, buffer, buffered);
+      buffered += length;
+   }
+
+
+   private void closeStartTag() throws IOException {
+      if (inStartTag) {
+         write('>');
+         inStartTag = false;
+      }
+   }
+
+
+   // writes s, escaping as required.  Unescaped runs are written in one call.
+   protected void escape(String s, boolean isAttribute) throws IOException {
+      int start = 0;
+      int length = s.length();
+      for (int i = 0; i < length; i++) {
+         String replacement;
+         switch (s.charAt(i)) {
+            case '<': replacement = "&lt;"; break;
+            case '>': replacement = "&gt;"; break;
+            case '&': replacement = "&amp;"; break;
+            case '"': replacement = isAttribute ? "&quot;" : null; break;
+            case '\n': replacement = isAttribute ? "&#10;" : null; break;
+            case '\r': replacement = "&#13;"; break;
+            case '\t': replacement = isAttribute ? "&#9;" : null; break;
+            default: replacement = null;
+         }
+
+         if (replacement != null) {
+            write(s, start, i - start);
+            write(replacement);
+            start = i + 1;
+         }
+      }
+      write(s, start, length - start);
+   }
+
+}
@@ -2,8 +2,10 @@ package com.flyingspaniel.xen;
 
 import org.w3c.dom.DOMException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -20,7 +22,7 @@ import java.util.List;
  *    //  is NOT supported.
  *
  * </pre>
- *    Three predicates are supported, after x or *.<ul>
+ *    These predicates are supported, after x or *.<ul>
  *    <li>[N] and [last()-N] work as per W3C.  However, the last() is optional.  Any non-positive Ns will be treated as last+N.  e.g.
  *    <ul>
  *      <li>If N > 0, will select the Nth child.    (1-based, W3C uses 1-based numbering)
@@ -30,6 +32,9 @@ import java.util.List;
  *    <li>[@a] or [@a='val'] work as per W3C.   (note - unlike W3C, the single quotes are optional)
  *    <li>[text()='val'] or [.='val'] work as per W3C, matching if the element's text</li>
  *    <li>Use ~ instead of = to use a regular expression, e.g. [text()~'foo.*']  (This is non-standard W3C.) </li>
+ *    <li>[starts-with(@a,'val')] and [contains(.,'val')] work as per W3C (. or text() for the text, or an @attribute)</li>
+ *    <li>Richer expressions such as [price&gt;35 and not(@sale)] or [position()&lt;=10] are compiled, see PredicateCompiler.
+ *        Predicates may be chained, e.g. book[price&gt;35][position()&lt;=10]</li>
  *    <ul>
  *       <li>ename[@aname] selects all elements named ename with an attribute named aname
  *       <li>ename[@aname='avalue'] selects all elements named ename with an attribute named aname that equals avalue
@@ -66,6 +71,15 @@ public class Xpath {
    public static final String WILDCARD = "*";
    public static final String ATTRIBUTE = "@";
 
+   static final String STARTS_WITH = "starts-with(";
+   static final String CONTAINS = "contains(";
+
+   static final Pattern LAST_SHORTCUT = Pattern.compile("\\[\\s*last\\(\\)(?=\\s*(-\\s*\\d+\\s*)?\\])");
+   static final Pattern SIMPLE_INDEX = Pattern.compile("-?\\s*\\d+");
+   static final Pattern SIMPLE_ATTRIBUTE = Pattern.compile("@[\\w:.-]+");
+   static final Pattern SIMPLE_MATCH = Pattern.compile("(@[\\w:.-]+|\\.|text\\(\\))[=~]('[^']*'|[^'\\s]*)");
+   static final Pattern SIMPLE_FUNCTION = Pattern.compile("(starts-with|contains)\\(\\s*(@[\\w:.-]+|\\.|text\\(\\))\\s*,\\s*'[^']*'\\s*\\)");
+
    static final String[] NO_PATH = new String[0];
    static final XenPredicate[] NO_PREDICATES = new XenPredicate[0];
 
@@ -80,13 +94,16 @@ public class Xpath {
     * @param path  individual Strings may include / or . delimiters.  Will get concatenated
     */
    public Xpath(String... path) {
+      XenMetrics metrics = XenMetrics.get();
+      long start = metrics.isEnabled() ? System.nanoTime() : 0L;
+
       pathString = resolvePath(path);
       if (pathString.length() == 0) {
          pathSegments = NO_PATH;
          predicates = NO_PREDICATES;
       }
       else {
-         String[] splits = pathString.split("/");
+         String[] splits = splitPath(pathString);
          if ("".equals(splits[0]))
             splits[0] = ROOT;
 
@@ -102,10 +119,21 @@ public class Xpath {
                predicates[i] = XenPredicate.ALL;
             } else {
                pathSegments[i] = s.substring(0, predIndex);
-               predicates[i] = calcPredicate(s, oneBasedIndices);
+               List<String> predStrings = splitPredicates(s.substring(predIndex));
+               if (predStrings.size() == 1)
+                  predicates[i] = calcPredicate(predStrings.get(0), oneBasedIndices);
+               else {
+                  XenPredicate[] chain = new XenPredicate[predStrings.size()];
+                  for (int p = 0; p < chain.length; p++)
+                     chain[p] = calcPredicate(predStrings.get(p), oneBasedIndices);
+                  predicates[i] = new XenPredicate.Chain(chain);
+               }
             }
          }
       }
+
+      if (start != 0L)
+         metrics.xpathCompiled(System.nanoTime() - start);
    }
 
 
@@ -116,57 +144,207 @@ public class Xpath {
     * @return never-null, may be empty
     */
    public List<Xen> evaluate(Xen xen, int startIdx) {
-      List<Xen> matches = new ArrayList<Xen>();
+      return evaluate(xen, startIdx, Integer.MAX_VALUE);
+   }
+
 
-      if (pathSegments.length <= startIdx) {
-         matches.add(xen);
+   /**
+    * Return a list of Xens matching the criteria, stopping as soon as limit have been found
+    * @param xen        start point
+    * @param startIdx   within our path, mainly used when when recurring.
+    * @param limit      maximum number to find, e.g. use 2 to distinguish between 0, 1, or many
+    * @return never-null, may be empty
+    */
+   public List<Xen> evaluate(Xen xen, int startIdx, int limit) {
+      List<Xen> matches = new ArrayList<Xen>();
+      if (limit <= 0)
          return matches;
+
+      XenMetrics metrics = XenMetrics.get();
+      if (!metrics.isEnabled())
+         evaluate(xen, startIdx, limit, matches);
+      else {
+         long start = System.nanoTime();
+         long visited = evaluate(xen, startIdx, limit, matches);
+         metrics.xpathEvaluated(System.nanoTime() - start, visited, matches.size());
       }
+      return matches;
+   }
 
-      for (int i = startIdx; i < pathSegments.length && (xen != null); i++) {
-         String segment = pathSegments[i];
 
-         if (PARENT.equals(segment))     // up one
-            xen = xen.parent();
-         else if (CURRENT.equals(segment)) // same dir
-            continue;
-         else if (ROOT.equals(segment))
-            xen = xen.rootElement();
-         else if (segment.startsWith(ATTRIBUTE)) {
-            if ("@*".equals(segment)) {
-               throw new UnsupportedOperationException(pathString); // TODO
+   // adds to matches, returns as soon as there are limit of them.  Uses a stack of Frames instead of recursion.
+   // returns the number of Xens visited, see XenMetrics.xpathEvaluated()
+   protected long evaluate(Xen xen, int startIdx, int limit, List<Xen> matches) {
+      ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+      int i = startIdx;
+      long visited = 0;
+
+      while (true) {
+         visited++;
+         for (; i < pathSegments.length && (xen != null); i++) {
+            String segment = pathSegments[i];
+
+            if (PARENT.equals(segment))     // up one
+               xen = xen.parent();
+            else if (CURRENT.equals(segment)) // same dir
+               continue;
+            else if (ROOT.equals(segment))
+               xen = xen.rootElement();
+            else if (segment.startsWith(ATTRIBUTE)) {
+               if ("@*".equals(segment)) {
+                  throw new UnsupportedOperationException(pathString); // TODO
+               } else {
+                  String name = segment.substring(1);
+                  // create a fakey little "attribute" element...  name will start with "@" for clarity
+                  if (xen.hasAttribute(name))
+                     xen = new Xen(segment, xen, xen.attribute(name));
+                  else
+                     xen = null;
+               }
+               break; // Attributes are the end of the line
             } else {
-               String name = segment.substring(1);
-               // create a fakey little "attribute" element...  name will start with "@" for clarity
-               if (xen.hasAttribute(name))
-                  xen = new Xen(segment, xen, xen.attribute(name));
-               else
-                  xen = null;
+               boolean isLast = (i == pathSegments.length-1);
+               visited += xen.children.size();
+               List<Xen> childList = selectChildren(xen, segment, predicates[i], isLast ? limit - matches.size() : Integer.MAX_VALUE);
+
+               if (isLast) {
+                  for (int c = 0; c < childList.size() && matches.size() < limit; c++)
+                     matches.add(childList.get(c));
+               }
+               else if (!childList.isEmpty())
+                  stack.push(new Frame(childList, i + 1));
+
+               xen = null;  // never add
+               break;
             }
-            break; // Attributes are the end of the line
-         } else {
-            List<Xen> childList = xen.children(segment);
-            xen = null;  // never add
-            childList = predicates[i].apply(childList);
-
-            if (i == pathSegments.length-1) {
-               matches.addAll(childList);
-               return matches;
-            }
-            else if (childList.size() == 0) {
-               // end of the line
-               return matches;
-            }
-            else for (Xen child : childList) {
-               matches.addAll(evaluate(child, i + 1));
+         }
+
+         if (xen != null)
+            matches.add(xen);
+         if (matches.size() >= limit)
+            return visited;
+
+         // continue with the next child waiting on the stack
+         xen = null;
+         while ((xen == null) && !stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next < frame.children.size()) {
+               xen = frame.children.get(frame.next++);
+               i = frame.segmentIdx;
             }
+            else
+               stack.pop();
+         }
+         if (xen == null)
+            return visited;
+      }
+   }
+
+
+   // children still to be evaluated, starting at segmentIdx
+   static final class Frame {
+      final List<Xen> children;
+      final int segmentIdx;
+      int next = 0;
+
+      Frame(List<Xen> children, int segmentIdx) {
+         this.children = children;
+         this.segmentIdx = segmentIdx;
+      }
+   }
+
+
+   /**
+    * Return the first Xen matching the criteria.  Quits as soon as one is found.
+    * @param xen  start point
+    * @return null if none
+    */
+   public Xen first(Xen xen) {
+      List<Xen> matches = evaluate(xen, 0, 1);
+      return matches.isEmpty() ? null : matches.get(0);
+   }
+
+
+   /**
+    * Select the children named segment that pass the predicate.
+    * When possible, the children are tested one at a time, without building intermediate Lists, and we stop at limit.
+    * @param limit  max number wanted.  May return more.
+    * @return never null
+    */
+   protected List<Xen> selectChildren(Xen xen, String segment, XenPredicate predicate, int limit) {
+      List<Xen> childList = indexedChildren(xen, segment, predicate);
+      if (childList != null)
+         return childList;
+
+      if (!streams(predicate))
+         return predicate.apply(xen.children(segment));
+
+      XenPredicate.Filter filter = null;
+      int maxPosition = Integer.MAX_VALUE;
+      if (predicate instanceof XenPredicate.Filter) {
+         maxPosition = ((XenPredicate.Filter) predicate).maxPosition();
+         filter = ((XenPredicate.Filter) predicate).begin();   // e.g. one Matcher for all the children
+      }
+
+      childList = new ArrayList<Xen>();
+      int position = 0;
+      boolean wildcard = WILDCARD.equals(segment);
+      for (Xen child : xen.children) {
+         if (!wildcard && !segment.equals(child.name))
+            continue;
+         if (++position > maxPosition)
             break;
+         if ((filter == null) || filter.accept(child, position, -1)) {
+            childList.add(child);
+            if (childList.size() >= limit)
+               break;
          }
       }
 
-      if (matches.size() == 0 && xen != null)
-         matches.add(xen);
-      return matches;
+      return childList;
+   }
+
+
+   // whether selectChildren() can test children one at a time, else it uses predicate.apply()
+   static boolean streams(XenPredicate predicate) {
+      if (predicate == XenPredicate.ALL)
+         return true;
+      if (!(predicate instanceof XenPredicate.Filter))
+         return false;
+      XenPredicate.Filter filter = (XenPredicate.Filter) predicate;
+      return !filter.usesSize() && !(filter instanceof XenPredicate.Index);
+   }
+
+
+   /**
+    * Evaluate, collecting statistics about each step, to see where the time goes.  Returns the same results as
+    * evaluate(xen), but is much slower, so use it for tuning, not in production.
+    * @param xen  start point
+    * @return never null
+    */
+   public XpathProfile profile(Xen xen) {
+      return new XpathProfile(this, xen);
+   }
+
+   String[] pathSegments() { return pathSegments; }
+
+   XenPredicate[] predicates() { return predicates; }
+
+
+   /**
+    * If there is an AttributeIndex for this [@a='val'] predicate, use it
+    * @return  null if there is no applicable index
+    */
+   protected List<Xen> indexedChildren(Xen xen, String segment, XenPredicate predicate) {
+      if (xen.indexes.isEmpty() || !(predicate instanceof XenPredicate.AttributeMatches))
+         return null;
+
+      XenPredicate.AttributeMatches matches = (XenPredicate.AttributeMatches) predicate;
+      if (matches.type != XenPredicate.MatchType.EQUALS)
+         return null;
+
+      AttributeIndex index = xen.attributeIndex(segment, matches.name);
+      return (index != null) ? index.lookup(matches.value) : null;
    }
 
 
@@ -180,6 +358,34 @@ public class Xpath {
    }
 
 
+   /**
+    * Whether every step of this Xpath stays within the subtree of the starting Xen,
+    * i.e. there is no "/" or "..", either in the path or in a predicate such as [../@flag='1']
+    * @return  true if the results depend only upon the starting Xen and its descendants
+    */
+   public boolean isLocal() {
+      for (String segment : pathSegments)
+         if (ROOT.equals(segment) || PARENT.equals(segment))
+            return false;
+      for (XenPredicate predicate : predicates)
+         if (!isLocal(predicate))
+            return false;
+
+      return true;
+   }
+
+   static boolean isLocal(XenPredicate predicate) {
+      if (predicate instanceof XenPredicate.Chain) {
+         for (XenPredicate chained : ((XenPredicate.Chain) predicate).predicates)
+            if (!isLocal(chained))
+               return false;
+         return true;
+      }
+
+      return !(predicate instanceof XenPredicate.Filter) || ((XenPredicate.Filter) predicate).isLocal();
+   }
+
+
    /**
     * Combines path array, which may include "/" or ".", into a single String
     * @param xpaths
@@ -225,8 +431,8 @@ public class Xpath {
          resolved = String.valueOf(chars);
       }
 
-      // one shortcut
-      resolved = resolved.replace("[last()", "[");
+      // one shortcut, [last()] becomes [] and [last()-N] becomes [-N]
+      resolved = LAST_SHORTCUT.matcher(resolved).replaceAll("[");
       return resolved;
    }
 
@@ -247,11 +453,46 @@ public class Xpath {
    }
 
 
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof Xpath))
+         return false;
+
+      Xpath that = (Xpath) o;
+      return (oneBasedIndices == that.oneBasedIndices) && pathString.equals(that.pathString);
+   }
+
+   @Override
+   public int hashCode() {
+      return pathString.hashCode() * 2 + (oneBasedIndices ? 1 : 0);
+   }
+
+   @Override
+   public String toString() {
+      return pathString;
+   }
+
+
+   /**
+    * Converts one predicate, e.g. "[@a='val']", into a XenPredicate.
+    * The simple forms are handled here, anything richer is compiled by PredicateCompiler.
+    */
    protected XenPredicate calcPredicate(String s, boolean oneBasedInput) {
-      s = getBetween(s, '[', ']');
+      s = getBetween(s, '[', ']').trim();
       if (s.length() == 0)  // predicate was "last()" and got removed
          return XenPredicate.LAST;
 
+      if (!SIMPLE_INDEX.matcher(s).matches() && !SIMPLE_ATTRIBUTE.matcher(s).matches() &&
+          !SIMPLE_MATCH.matcher(s).matches() && !SIMPLE_FUNCTION.matcher(s).matches())
+         return PredicateCompiler.compile(s);
+
+      if (s.startsWith(STARTS_WITH))
+         return calcFunction(s.substring(STARTS_WITH.length()), XenPredicate.MatchType.STARTS_WITH);
+      if (s.startsWith(CONTAINS))
+         return calcFunction(s.substring(CONTAINS.length()), XenPredicate.MatchType.CONTAINS);
+
       boolean isRegex = false;
       int equalsIdx = s.indexOf('=');
       if (equalsIdx < 0)  {
@@ -276,7 +517,7 @@ public class Xpath {
          return new XenPredicate.TextMatches(value, isRegex);
       }
       else {
-         int idx = Integer.parseInt(s);
+         int idx = Integer.parseInt(s.replace(" ", ""));
          if (oneBasedInput && (idx > 0))
             idx--;
          return new XenPredicate.Index(idx);
@@ -285,6 +526,94 @@ public class Xpath {
    }
 
 
+   /**
+    * Handles the arguments of starts-with(@a,'val') or contains(.,'val')  (text() works in place of .)
+    * @param s     after the opening "(", e.g. "@a,'val')"
+    * @param type  of comparison
+    */
+   protected XenPredicate calcFunction(String s, XenPredicate.MatchType type) {
+      int commaIdx = s.indexOf(',');
+      int closeIdx = s.lastIndexOf(')');
+      if ((commaIdx < 0) || (closeIdx < commaIdx))
+         throw new IllegalArgumentException("Bad predicate in <" + pathString + ">");
+
+      String target = s.substring(0, commaIdx).trim();
+      String value = getBetween(s.substring(commaIdx + 1, closeIdx).trim(), '\'', '\'');
+      if (target.startsWith(ATTRIBUTE))
+         return new XenPredicate.AttributeMatches(target.substring(1), value, type);
+      else if (CURRENT.equals(target) || "text()".equals(target))
+         return new XenPredicate.TextMatches(value, type);
+
+      throw new IllegalArgumentException("Bad predicate in <" + pathString + ">");
+   }
+
+
+   /**
+    * Like String.split("/"), but ignores any / within a predicate
+    */
+   static String[] splitPath(String path) {
+      List<String> splits = new ArrayList<String>();
+      int depth = 0;
+      char quote = 0;
+      int start = 0;
+      for (int i = 0; i < path.length(); i++) {
+         char c = path.charAt(i);
+         if (quote != 0) {
+            if (c == quote)
+               quote = 0;
+         }
+         else if ((depth > 0) && ((c == '\'') || (c == '"')))
+            quote = c;
+         else if (c == '[')
+            depth++;
+         else if (c == ']')
+            depth--;
+         else if ((c == '/') && (depth == 0)) {
+            splits.add(path.substring(start, i));
+            start = i + 1;
+         }
+      }
+      splits.add(path.substring(start));
+
+      int size = splits.size();
+      while ((size > 1) && splits.get(size - 1).length() == 0)
+         size--;  // as per String.split(), trailing empty Strings are removed
+
+      return splits.subList(0, size).toArray(new String[size]);
+   }
+
+
+   /**
+    * Splits one or more predicates, e.g. "[price&gt;35][1]", into "[price&gt;35]" and "[1]"
+    */
+   static List<String> splitPredicates(String s) {
+      List<String> predicates = new ArrayList<String>(1);
+      int depth = 0;
+      char quote = 0;
+      int start = 0;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (quote != 0) {
+            if (c == quote)
+               quote = 0;
+         }
+         else if ((c == '\'') || (c == '"'))
+            quote = c;
+         else if (c == '[') {
+            if (depth++ == 0)
+               start = i;
+         }
+         else if ((c == ']') && (--depth == 0))
+            predicates.add(s.substring(start, i + 1));
+      }
+
+      if (depth > 0 || predicates.isEmpty())
+         predicates.add(s.substring(start));  // unbalanced, let calcPredicate make what it can of it
+
+      return predicates;
+   }
+
+
    static String getBetween(String in, char start, char end) {
       int i1 = in.indexOf(start);
       int i2 = (i1 >= 0) ? in.lastIndexOf(end) : -1;
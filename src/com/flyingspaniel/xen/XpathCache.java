@@ -0,0 +1,248 @@
+package com.flyingspaniel.xen;
+
+import org.w3c.dom.DOMException;
+
+import java.util.*;
+
+/**
+ * Optional memoization of Xpath results, for read-mostly trees that get asked the same questions over and over.
+ * Results are cached per (starting Xen, Xpath) in a bounded LRU cache.  Example use:
+ * <pre><code>
+    XpathCache cache = new XpathCache(1000);
+    List&lt;Xen&gt; items = cache.all(catalog, "item[@type='x']");
+ * </code></pre>
+ *
+ * A cached result is automatically invalidated when the subtree of the starting Xen is changed via append(), remove(),
+ * setText(), putAttributes() or setAttributes().  If the Xpath leaves that subtree ("/" or "..") any change to the
+ * entire tree invalidates it.  See {@link Xen#modCount()}.
+ * Changes made directly to the Collections from Xen.children() or Xen.attributes() are <em>not</em> detected.
+ *
+ * Lists returned are unmodifiable, since they may be shared with later callers.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XpathCache {
+
+   public static final int DEFAULT_CAPACITY = 1000;
+
+   protected final int capacity;
+
+   private final Map<Key, Result> results;
+   private final Map<List<String>, Xpath> compiled;
+
+   private long hits;
+   private long misses;
+   private long evictions;
+   private long invalidations;
+
+
+   /**
+    * Constructor
+    * @param capacity  maximum number of results (and of compiled Xpaths) to keep, must be > 0
+    */
+   public XpathCache(int capacity) {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("capacity must be > 0");
+
+      this.capacity = capacity;
+      results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+            if (size() <= XpathCache.this.capacity)
+               return false;
+            evictions++;
+            return true;
+         }
+      };
+      compiled = new LinkedHashMap<List<String>, Xpath>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<List<String>, Xpath> eldest) {
+            return size() > XpathCache.this.capacity;
+         }
+      };
+   }
+
+   public XpathCache() {
+      this(DEFAULT_CAPACITY);
+   }
+
+
+   /**
+    * Returns a compiled Xpath, reusing a previous one if possible
+    * @param path  XPath-like
+    * @return  Xpath
+    */
+   public Xpath compile(String... path) {
+      List<String> key = Arrays.asList(path);
+      synchronized (this) {
+         Xpath xpath = compiled.get(key);
+         if (xpath != null)
+            return xpath;
+      }
+
+      Xpath xpath = new Xpath(path);
+      synchronized (this) {
+         compiled.put(key, xpath);
+      }
+      return xpath;
+   }
+
+
+   /**
+    * Cached version of Xpath.evaluate()
+    * @param xpath  compiled path
+    * @param xen    start point
+    * @return never-null, unmodifiable, may be empty
+    */
+   public List<Xen> evaluate(Xpath xpath, Xen xen) {
+      Key key = new Key(xen, xpath);
+      Xen stampedBy = xpath.isLocal() ? xen : xen.rootElement();
+
+      synchronized (this) {
+         Result result = results.get(key);
+         if (result != null) {
+            if ((result.stampedBy == stampedBy) && (result.stamp == stampedBy.modCount())) {
+               hits++;
+               return result.matches;
+            }
+
+            results.remove(key);
+            invalidations++;
+         }
+         misses++;
+      }
+
+      long stamp = stampedBy.modCount();  // read before evaluating so a concurrent change leaves us stale, not wrong
+      List<Xen> matches = Collections.unmodifiableList(xpath.evaluate(xen));
+      synchronized (this) {
+         results.put(key, new Result(matches, stampedBy, stamp));
+      }
+
+      return matches;
+   }
+
+
+   /**
+    * Cached version of Xen.all()
+    * @param xen   start point
+    * @param path  XPath-like
+    * @return never null, unmodifiable, may be empty
+    */
+   public List<Xen> all(Xen xen, String... path) {
+      return evaluate(compile(path), xen);
+   }
+
+
+   /**
+    * Cached version of Xen.get()
+    * @param xen   start point
+    * @param path  XPath-like
+    * @return Xen, null if none were found
+    * @throws DOMException if many were found
+    */
+   public Xen get(Xen xen, String... path) throws DOMException {
+      if (path.length == 0)
+         return xen;
+
+      Xpath xpath = compile(path);
+      List<Xen> matches = evaluate(xpath, xen);
+      if (matches.size() == 0)
+         return null;
+      return xpath.thereCanBeOnlyOne(matches);
+   }
+
+
+   /**
+    * Cached version of Xen.one()
+    * @param xen   start point
+    * @param path  XPath-like
+    * @return never-null
+    * @throws DOMException if 0 or many matches were found
+    */
+   public Xen one(Xen xen, String... path) throws DOMException {
+      if (path.length == 0)
+         return xen;
+
+      Xpath xpath = compile(path);
+      return xpath.thereCanBeOnlyOne(evaluate(xpath, xen));
+   }
+
+
+   /**
+    * Discard all cached results and compiled Xpaths.  Does not reset the metrics.
+    */
+   public synchronized void clear() {
+      results.clear();
+      compiled.clear();
+   }
+
+
+   public synchronized int size() { return results.size(); }
+
+   public synchronized long hits() { return hits; }
+
+   public synchronized long misses() { return misses; }
+
+   public synchronized long evictions() { return evictions; }
+
+   /**
+    * @return  number of cached results discarded because their tree was modified
+    */
+   public synchronized long invalidations() { return invalidations; }
+
+   /**
+    * @return  hits / (hits + misses), 0.0 if there have been no lookups
+    */
+   public synchronized double hitRate() {
+      long lookups = hits + misses;
+      return (lookups > 0) ? (double) hits / lookups : 0.0;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "XpathCache[size=" + results.size() + ", hits=" + hits + ", misses=" + misses +
+             ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+   }
+
+
+
+   // Xens are compared by identity
+   static final class Key {
+      final Xen xen;
+      final Xpath xpath;
+
+      Key(Xen xen, Xpath xpath) {
+         this.xen = xen;
+         this.xpath = xpath;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key))
+            return false;
+         Key that = (Key) o;
+         return (xen == that.xen) && xpath.equals(that.xpath);
+      }
+
+      @Override
+      public int hashCode() {
+         return System.identityHashCode(xen) * 31 + xpath.hashCode();
+      }
+   }
+
+
+   static final class Result {
+      final List<Xen> matches;
+      final Xen stampedBy;
+      final long stamp;
+
+      Result(List<Xen> matches, Xen stampedBy, long stamp) {
+         this.matches = matches;
+         this.stampedBy = stampedBy;
+         this.stamp = stamp;
+      }
+   }
+
+}
@@ -0,0 +1,196 @@
+package com.flyingspaniel.xen;
+
+import java.util.*;
+
+/**
+ * The "explain plan" for an Xpath: evaluates it one step at a time, recording for each step how many
+ * Xens it started from, how many children it looked at, how many candidates had the right name,
+ * how many each predicate kept, whether an AttributeIndex was used, how many Lists were allocated, and the time taken.
+ * Example use:
+ * <pre><code>
+    XpathProfile profile = catalog.profile("items/item[@type='x'][price>10]");
+    System.out.println(profile);
+ * </code></pre>
+ *
+ * The results are the same as Xpath.evaluate(), but the work is done level by level, and predicates
+ * are re-applied to count what each one kept, so this is slower.  The counts show where the work is, the times are a rough guide.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XpathProfile {
+
+   /**
+    * Statistics for one step of the path
+    */
+   public static class Step {
+      public final String step;          // e.g. "item[@type='x']"
+      public final String[] predicates;  // each predicate, e.g. "[@type='x']", may be empty
+      public int contexts;               // Xens this step started from
+      public long childrenScanned;       // children of those
+      public long candidates;            // children with a matching name
+      public final long[] keptBy;        // how many survived each predicate, in turn
+      public long results;               // Xens passed on to the next step
+      public int indexLookups;           // times an AttributeIndex was used instead of scanning
+      public long listsAllocated;
+      public long nanos;
+
+      Step(String step, List<String> predicates) {
+         this.step = step;
+         this.predicates = predicates.toArray(new String[predicates.size()]);
+         this.keptBy = new long[predicates.size()];
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format("%-30s contexts=%d scanned=%d candidates=%d", step, contexts, childrenScanned, candidates));
+         for (int p = 0; p < predicates.length; p++)
+            sb.append(' ').append(predicates[p]).append(" kept ").append(keptBy[p]);
+         if (indexLookups > 0)
+            sb.append(" indexLookups=").append(indexLookups);
+         sb.append(String.format(" results=%d lists=%d %.3f ms", results, listsAllocated, nanos / 1e6));
+         return sb.toString();
+      }
+   }
+
+
+   protected final Xpath xpath;
+   protected final List<Step> steps = new ArrayList<Step>();
+   protected List<Xen> results;
+   protected long nanos;
+
+
+   XpathProfile(Xpath xpath, Xen xen) {
+      this.xpath = xpath;
+
+      long start = System.nanoTime();
+      String[] segments = xpath.pathSegments();
+      XenPredicate[] predicates = xpath.predicates();
+      String[] stepStrings = (segments.length > 0) ? Xpath.splitPath(xpath.toString()) : segments;
+
+      List<Xen> contexts = new ArrayList<Xen>();
+      contexts.add(xen);
+      for (int i = 0; i < segments.length && !contexts.isEmpty(); i++) {
+         String stepString = (stepStrings[i].length() > 0) ? stepStrings[i] : Xpath.ROOT;
+         int bracket = stepString.indexOf('[');
+         Step step = new Step(stepString, (bracket < 0) ? new ArrayList<String>() : Xpath.splitPredicates(stepString.substring(bracket)));
+         steps.add(step);
+
+         long stepStart = System.nanoTime();
+         List<Xen> next = new ArrayList<Xen>();
+         step.listsAllocated++;
+         boolean isAttribute = segments[i].startsWith(Xpath.ATTRIBUTE);
+         for (Xen context : contexts) {
+            step.contexts++;
+            List<Xen> selected = select(context, segments[i], predicates[i], step);
+            next.addAll(selected);
+         }
+         step.results = next.size();
+         step.nanos = System.nanoTime() - stepStart;
+
+         contexts = next;
+         if (isAttribute)
+            break;  // Attributes are the end of the line
+      }
+
+      results = contexts;
+      nanos = System.nanoTime() - start;
+   }
+
+
+   // does one step from context, mirroring Xpath.evaluate()
+   private List<Xen> select(Xen context, String segment, XenPredicate predicate, Step step) {
+      Xen single;
+      if (Xpath.PARENT.equals(segment))
+         single = context.parent();
+      else if (Xpath.CURRENT.equals(segment))
+         single = context;
+      else if (Xpath.ROOT.equals(segment))
+         single = context.rootElement();
+      else if (segment.startsWith(Xpath.ATTRIBUTE)) {
+         if ("@*".equals(segment))
+            throw new UnsupportedOperationException(xpath.toString());
+         String name = segment.substring(1);
+         single = context.hasAttribute(name) ? new Xen(segment, context, context.attribute(name)) : null;
+      }
+      else {
+         step.childrenScanned += context.children.size();
+         List<Xen> candidates = context.children(segment);
+         step.candidates += candidates.size();
+         countKept(candidates, predicate, step);
+
+         boolean indexed = xpath.indexedChildren(context, segment, predicate) != null;  // the lookup is repeated below, which is cheap
+         if (indexed)
+            step.indexLookups++;
+         step.listsAllocated += listsAllocated(predicate, indexed);
+         return xpath.selectChildren(context, segment, predicate, Integer.MAX_VALUE);
+      }
+
+      if (single == null)
+         return Collections.emptyList();
+      return Collections.singletonList(single);
+   }
+
+
+   // applies the predicates one more at a time, to see how many each kept
+   private static void countKept(List<Xen> candidates, XenPredicate predicate, Step step) {
+      if (step.keptBy.length == 0)
+         return;
+      if (!(predicate instanceof XenPredicate.Chain)) {
+         step.keptBy[0] += predicate.apply(candidates).size();
+         return;
+      }
+
+      XenPredicate[] chain = ((XenPredicate.Chain) predicate).predicates;
+      for (int p = 0; p < chain.length && p < step.keptBy.length; p++)
+         step.keptBy[p] += new XenPredicate.Chain(Arrays.copyOf(chain, p + 1)).apply(candidates).size();
+   }
+
+
+   // what Xpath.selectChildren() allocates for one context
+   private static int listsAllocated(XenPredicate predicate, boolean indexed) {
+      if (indexed || Xpath.streams(predicate))
+         return 1;
+      XenPredicate.Chain chain = (predicate instanceof XenPredicate.Chain) ? (XenPredicate.Chain) predicate : null;
+      if ((chain != null) && !chain.streamable)
+         return 1 + chain.predicates.length;
+      return 2;   // children(segment), then predicate.apply()
+   }
+
+
+   public Xpath xpath() { return xpath; }
+
+   public List<Step> steps() { return Collections.unmodifiableList(steps); }
+
+   /**
+    * @return  the same Xens as Xpath.evaluate()
+    */
+   public List<Xen> results() { return results; }
+
+   public long nanos() { return nanos; }
+
+
+   /**
+    * @return  the step with the most time, null if there were no steps
+    */
+   public Step slowest() {
+      Step slowest = null;
+      for (Step step : steps)
+         if ((slowest == null) || (step.nanos > slowest.nanos))
+            slowest = step;
+      return slowest;
+   }
+
+
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Xpath %s: %d results in %.3f ms%n", xpath, results.size(), nanos / 1e6));
+      for (Step step : steps)
+         sb.append("  ").append(step).append(String.format("%n"));
+      return sb.toString();
+   }
+
+}
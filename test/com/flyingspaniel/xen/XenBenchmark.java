@@ -0,0 +1,487 @@
+package com.flyingspaniel.xen;
+
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Crude timings of the main operations on a very deep and a very wide document.
+ * Not a unit test, run main()
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2014 by Morgan Conrad
+ */
+public class XenBenchmark {
+
+   static final int WARMUPS = 3;
+   static final int REPS = 5;
+
+
+   /**
+    * @return  &lt;a&gt;&lt;a&gt;... depth deep
+    */
+   static String deepXml(int depth) {
+      StringBuilder sb = new StringBuilder(depth * 8);
+      for (int i = 0; i < depth; i++)
+         sb.append("<a i=\"").append(i).append("\">");
+      sb.append("bottom");
+      for (int i = 0; i < depth; i++)
+         sb.append("</a>");
+      return sb.toString();
+   }
+
+   /**
+    * @return  a root with width children, each with a couple of attributes and a little text
+    */
+   static String wideXml(int width) {
+      StringBuilder sb = new StringBuilder(width * 40);
+      sb.append("<catalog>");
+      for (int i = 0; i < width; i++)
+         sb.append("<item id=\"SKU-").append(i).append("\" type=\"").append(i % 10).append("\">item ").append(i).append("</item>");
+      sb.append("</catalog>");
+      return sb.toString();
+   }
+
+
+   /**
+    * Runs task a few times, prints the best time
+    * @return the last result of task
+    */
+   static <T> T time(String label, Callable<T> task) throws Exception {
+      T result = null;
+      for (int i = 0; i < WARMUPS; i++)
+         result = task.call();
+
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < REPS; i++) {
+         long start = System.nanoTime();
+         result = task.call();
+         best = Math.min(best, System.nanoTime() - start);
+      }
+
+      System.out.printf("  %-40s %10.2f ms%n", label, best / 1e6);
+      return result;
+   }
+
+
+   static void benchmark(String shape, final String xml, final String query) throws Exception {
+      System.out.println(shape + " (" + xml.length() + " chars)");
+      final XenParser parser = new XenParser();
+
+      final Xen root = time("XenParser.parseText", new Callable<Xen>() {
+         public Xen call() throws Exception { return parser.parseText(xml); }
+      });
+      final byte[] bytes = xml.getBytes("UTF-8");
+      time("XenParser.parse(byte[])", new Callable<Xen>() {
+         public Xen call() throws Exception { return parser.parse(bytes, 0, bytes.length); }
+      });
+      final XenStaxParser staxParser = new XenStaxParser();
+      time("XenStaxParser.parseText", new Callable<Xen>() {
+         public Xen call() throws Exception { return staxParser.parseText(xml); }
+      });
+      final XenPushParser pushParser = new XenPushParser();
+      time("XenPushParser, 8K chunks", new Callable<Xen>() {
+         public Xen call() throws Exception {
+            pushParser.reset();
+            for (int i = 0; i < bytes.length; i += 8192)
+               pushParser.feed(bytes, i, Math.min(8192, bytes.length - i));
+            return pushParser.finish();
+         }
+      });
+      time("depthFirst", new Callable<Object>() {
+         public Object call() { return root.depthFirst(); }
+      });
+      time("breadthFirst", new Callable<Object>() {
+         public Object call() { return root.breadthFirst(); }
+      });
+      time("all(" + query + ")", new Callable<Object>() {
+         public Object call() { return root.all(query); }
+      });
+      XenMetrics.install(new XenMetrics.Registry());
+      time("all(" + query + "), with XenMetrics", new Callable<Object>() {
+         public Object call() { return root.all(query); }
+      });
+      XenMetrics.install(null);
+      time("ToXML", new Callable<Object>() {
+         public Object call() { return new Converter.ToXML("", "").convert(root); }
+      });
+      time("XenWriter.xen", new Callable<Object>() {
+         public Object call() throws Exception {
+            StringWriter sw = new StringWriter(xml.length());
+            new XenWriter(sw).xen(root).close();
+            return sw;
+         }
+      });
+      try {
+         time("ToStream", new Callable<Object>() {
+            public Object call() throws Exception {
+               StringWriter sw = new StringWriter(xml.length());
+               new Converter.ToStream(XMLOutputFactory.newInstance().createXMLStreamWriter(sw)).convert(root);
+               return sw;
+            }
+         });
+      }
+      catch (RuntimeException re) {
+         System.out.printf("  %-40s %s%n", "ToStream", "failed: " + re);  // the JDK's writer can't go 32K deep
+      }
+      final Document document = time("ToDocument", new Callable<Document>() {
+         public Document call() throws Exception {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            return new Converter.ToDocument(doc).convert(root);
+         }
+      });
+      time("ToDocument, cached builder", new Callable<Document>() {
+         public Document call() { return new Converter.ToDocument().convert(root); }
+      });
+      final ForkJoinPool pool = new ForkJoinPool();
+      time("ToDocument (parallel)", new Callable<Document>() {
+         public Document call() { return new Converter.ToDocument().convert(root, pool); }
+      });
+      time("FromDocument", new Callable<Object>() {
+         public Object call() { return Converter.FromDocument.DEFAULT.convert(document); }
+      });
+      final Converter.FromDocument parallel = new Converter.FromDocument(true, new ForkJoinPool(), 4096);
+      time("FromDocument (parallel)", new Callable<Object>() {
+         public Object call() { return parallel.convert(document); }
+      });
+   }
+
+
+   /**
+    * @return  like wideXml(), but the text is mostly non-ASCII
+    */
+   static String multilingualXml(int width) {
+      String[] words = { "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8", "\u0395\u03bb\u03bb\u03b7\u03bd\u03b9\u03ba\u03ac",
+                         "\u0420\u0443\u0441\u0441\u043a\u0438\u0439", "Caf\u00e9 cr\u00e8me", "plain ascii & more" };
+      StringBuilder sb = new StringBuilder(width * 60);
+      sb.append("<catalog>");
+      for (int i = 0; i < width; i++)
+         sb.append("<item id=\"").append(i).append("\">").append(words[i % words.length]).append(' ').append(i).append("</item>");
+      sb.append("</catalog>");
+      return sb.toString().replace(" & ", " &amp; ");
+   }
+
+
+   /**
+    * ToXML as a String then encoded, vs. writeUTF8
+    */
+   static void encoding(final String xml) throws Exception {
+      final Xen root = new XenParser().parseText(xml);
+      System.out.println("multilingual (" + xml.length() + " chars)");
+      for (final boolean asciiOnly : new boolean[] { true, false }) {
+         final Converter.ToXML toXML = new Converter.ToXML("", "", asciiOnly);
+         time("ToXML then getBytes, asciiOnly=" + asciiOnly, new Callable<Object>() {
+            public Object call() throws Exception { return toXML.convert(root).toString().getBytes("UTF-8"); }
+         });
+         time("ToXML.writeUTF8, asciiOnly=" + asciiOnly, new Callable<Object>() {
+            public Object call() throws Exception {
+               ByteArrayOutputStream bytes = new ByteArrayOutputStream(xml.length() * 2);
+               toXML.writeUTF8(root, bytes);
+               return bytes;
+            }
+         });
+      }
+   }
+
+
+   /**
+    * How ToXML scales with the number of threads
+    */
+   static void parallelToXML(String xml) throws Exception {
+      final Xen root = new XenParser().parseText(xml);
+      System.out.println("parallel ToXML (" + xml.length() + " chars, " + Runtime.getRuntime().availableProcessors() + " processors)");
+      final Converter.ToXML toXML = new Converter.ToXML("", "", false);
+      time("sequential", new Callable<Object>() {
+         public Object call() throws Exception { return toXML.convert(root); }
+      });
+      time("sequential writeUTF8", new Callable<Object>() {
+         public Object call() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(xml.length());
+            toXML.writeUTF8(root, bytes);
+            return bytes;
+         }
+      });
+
+      Set<Integer> threads = new TreeSet<Integer>(Arrays.asList(1, 2, 4, 8, Runtime.getRuntime().availableProcessors()));
+      for (int n : threads) {
+         final ForkJoinPool pool = new ForkJoinPool(n);
+         time(n + " threads", new Callable<Object>() {
+            public Object call() throws Exception { return toXML.convert(root, pool); }
+         });
+         time(n + " threads writeUTF8", new Callable<Object>() {
+            public Object call() throws Exception {
+               ByteArrayOutputStream bytes = new ByteArrayOutputStream(xml.length());
+               toXML.writeUTF8(root, bytes, pool);
+               return bytes;
+            }
+         });
+         pool.shutdown();
+      }
+   }
+
+
+   /**
+    * Produce a large document directly with XenWriter, vs. building Xens then using ToXML
+    */
+   static void building(final int width) throws Exception {
+      System.out.println("building " + width + " items");
+      time("Xen tree + ToXML", new Callable<Object>() {
+         public Object call() {
+            Xen catalog = new Xen("catalog", null);
+            for (int i = 0; i < width; i++) {
+               Xen item = new Xen("item", catalog, "item " + i);
+               item.putAttributes("id", "SKU-" + i, "type", Integer.toString(i % 10));
+               catalog.append(item);
+            }
+            return new Converter.ToXML("", "").convert(catalog).length();
+         }
+      });
+      time("XenWriter", new Callable<Object>() {
+         public Object call() throws Exception {
+            StringWriter sw = new StringWriter();
+            XenWriter writer = new XenWriter(sw).element("catalog");
+            for (int i = 0; i < width; i++)
+               writer.element("item").attribute("id", "SKU-" + i).attribute("type", Integer.toString(i % 10)).text("item " + i).end();
+            writer.close();
+            return sw.getBuffer().length();
+         }
+      });
+
+      final List<Xen> items = new ArrayList<Xen>(width);
+      for (int i = 0; i < width; i++)
+         items.add(new Xen("item", null, "item " + i).putAttributes("id", "SKU-" + i, "type", Integer.toString(i % 10)));
+      time("append, one at a time", new Callable<Object>() {
+         public Object call() {
+            Xen catalog = new Xen("catalog", null);
+            catalog.createIndex("item", "type");
+            for (Xen item : items)
+               catalog.append(item);
+            return catalog;
+         }
+      });
+      final Xen catalog = time("appendAll", new Callable<Xen>() {
+         public Xen call() {
+            Xen catalog = new Xen("catalog", null);
+            catalog.createIndex("item", "type");
+            return catalog.appendAll(items);
+         }
+      });
+      final Xen[] every10th = new Xen[width / 10];
+      for (int i = 0; i < every10th.length; i++)
+         every10th[i] = items.get(i * 10);
+      time("remove every 10th, (old removeAll)", new Callable<Object>() {
+         public Object call() { return new ArrayList<Xen>(items).removeAll(Arrays.asList(every10th)); }
+      });
+      time("remove every 10th, then appendAll", new Callable<Object>() {
+         public Object call() { return catalog.remove(every10th).appendAll(Arrays.asList(every10th)); }
+      });
+      time("sortChildren", new Callable<Object>() {
+         public Object call() {
+            return catalog.sortChildren(new Comparator<Xen>() {
+               public int compare(Xen a, Xen b) { return a.attribute("type").compareTo(b.attribute("type")); }
+            });
+         }
+      });
+   }
+
+
+   /**
+    * Reloading a catalog where a few items changed: re-parse and swap, vs. diff and patch the live tree
+    */
+   static void reloading(int width) throws Exception {
+      System.out.println("reloading " + width + " items, 3 changed");
+      final XenParser parser = new XenParser();
+      final String xml = wideXml(width);
+      final String changed = xml.replace(">item 1234<", ">item 1234 changed<").replace("type=\"7\">item 77<", "type=\"8\">item 77<")
+                                .replace("<item id=\"SKU-500\" type=\"0\">item 500</item>", "");
+      final Xen live = parser.parseText(xml);
+      time("parse", new Callable<Object>() {
+         public Object call() throws Exception { return parser.parseText(changed); }
+      });
+      final Xen fresh = parser.parseText(changed);
+      final XenDiff differ = new XenDiff("id");
+      XenDiff.Script script = time("diff", new Callable<XenDiff.Script>() {
+         public XenDiff.Script call() { return differ.diff(live, fresh); }
+      });
+      System.out.printf("  %-40s %10d%n", "edits", script.size());
+      script.apply(live);
+      time("diff, after patching", new Callable<Object>() {
+         public Object call() { return differ.diff(live, fresh); }
+      });
+
+      final Xen copy = parser.parseText(changed);
+      long start = System.nanoTime();
+      copy.structuralHash();
+      System.out.printf("  %-40s %10.2f ms%n", "structuralHash, first time", (System.nanoTime() - start) / 1e6);
+      time("deepEquals, hashes cached", new Callable<Object>() {
+         public Object call() { return copy.deepEquals(fresh); }
+      });
+      time("toString().equals()", new Callable<Object>() {
+         public Object call() { return copy.toString().equals(fresh.toString()); }
+      });
+      final Xen item = copy.children().get(width / 2);
+      time("setText, then structuralHash", new Callable<Object>() {
+         public Object call() { return item.setText(item.text()).rootElement().structuralHash(); }
+      });
+   }
+
+
+   /**
+    * @return  orders which repeat the same few address and currency blocks
+    */
+   static String repetitiveXml(int orders) {
+      StringBuilder sb = new StringBuilder(orders * 200);
+      sb.append("<orders>");
+      for (int i = 0; i < orders; i++)
+         sb.append("<order id=\"").append(i).append("\"><address type=\"billing\" country=\"US\"><street>")
+           .append(i % 3).append(" Main St</street><city>Springfield</city></address>")
+           .append("<currency code=\"USD\">US Dollar</currency><status>shipped</status></order>");
+      sb.append("</orders>");
+      return sb.toString();
+   }
+
+
+   static void sharing(final String xml) throws Exception {
+      System.out.println("sharing (" + xml.length() + " chars)");
+      for (final boolean sharing : new boolean[] { false, true }) {
+         final XenParser parser = new XenParser().setSharing(sharing);
+         time("XenParser.parseText, sharing=" + sharing, new Callable<Xen>() {
+            public Xen call() throws Exception { return parser.parseText(xml); }
+         });
+         parser.parseText("<empty/>");  // so it no longer holds a tree
+         long before = usedHeap();
+         Xen root = parser.parseText(xml);
+         System.out.printf("  %-40s %10.1f MB%n", "heap for the tree", (usedHeap() - before) / 1e6);
+         root.getClass();  // keep it reachable until measured
+      }
+   }
+
+   private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++)
+         System.gc();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+
+   static void transforming(final String xml) throws Exception {
+      System.out.println("transforming (" + xml.length() + " chars)");
+      final XenParser parser = new XenParser();
+      XenPredicate type3 = new XenPredicate.AttributeMatches("type", "3", false);
+      final XenTransform[] separate = {
+            new XenTransform().drop("item", type3),
+            new XenTransform().rename("item", "product"),
+            new XenTransform().removeAttributes("product", "type") };
+      final XenTransform combined = new XenTransform().drop("item", type3).rename("item", "product").removeAttributes("product", "type");
+
+      time("parse, 3 transforms, ToXML", new Callable<Object>() {
+         public Object call() throws Exception {
+            Xen root = parser.parseText(xml);
+            for (XenTransform transform : separate)
+               root = transform.apply(root);
+            return new Converter.ToXML("", "").convert(root).length();
+         }
+      });
+      time("parse, 1 combined transform, ToXML", new Callable<Object>() {
+         public Object call() throws Exception {
+            return new Converter.ToXML("", "").convert(combined.apply(parser.parseText(xml))).length();
+         }
+      });
+      final XMLInputFactory factory = XMLInputFactory.newInstance();
+      final XenStaxParser staxParser = new XenStaxParser();
+      time("stream, 1 combined transform", new Callable<Object>() {
+         public Object call() throws Exception {
+            StringWriter sw = new StringWriter(xml.length());
+            combined.stream(factory.createXMLStreamReader(new StringReader(xml)), staxParser, "item", new XenWriter(sw));
+            return sw.getBuffer().length();
+         }
+      });
+   }
+
+
+   static void json(final String xml) throws Exception {
+      System.out.println("json (" + xml.length() + " chars of XML)");
+      final Xen root = new XenParser().parseText(xml);
+      final String json = time("ToJSON", new Callable<String>() {
+         public String call() {
+            StringWriter sw = new StringWriter(xml.length());
+            return new Converter.ToJSON(sw).convert(root).toString();
+         }
+      });
+      System.out.printf("  %-40s %10d%n", "chars of JSON", json.length());
+      time("ToJSON, UTF-8 bytes", new Callable<Object>() {
+         public Object call() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(xml.length());
+            new Converter.ToJSON(bytes).convert(root);
+            return bytes.size();
+         }
+      });
+      final Converter.FromJSON fromJSON = new Converter.FromJSON();
+      time("FromJSON", new Callable<Xen>() {
+         public Xen call() throws Exception { return fromJSON.parseText(json); }
+      });
+   }
+
+
+   static void batch(int count) throws Exception {
+      System.out.println("batch of " + count + " small documents");
+      final List<byte[]> inputs = new ArrayList<byte[]>(count);
+      for (int i = 0; i < count; i++)
+         inputs.add(("<order><header><id>" + i + "</id></header>" + wideXml(20) + "</order>").getBytes("UTF-8"));
+      final XenBatch.Extractor<String> extractor = new XenBatch.Extractor<String>() {
+         public String extract(Xen order) { return order.oneText("header/id"); }
+      };
+
+      time("sequential, new XenParser each", new Callable<Object>() {
+         public Object call() throws Exception {
+            List<String> ids = new ArrayList<String>();
+            for (byte[] input : inputs)
+               ids.add(extractor.extract(new XenParser().parse(input, 0, input.length)));
+            return ids;
+         }
+      });
+      for (final int threads : new int[] { 1, 4 }) {
+         final XenBatch batch = new XenBatch(threads);
+         XenBatch.Stats stats = time("XenBatch, " + threads + " threads", new Callable<XenBatch.Stats>() {
+            public XenBatch.Stats call() throws Exception { return batch.collect(inputs, extractor, new ArrayList<String>()); }
+         });
+         System.out.println("    " + stats);
+         batch.close();
+      }
+      ExecutorService virtual = XenBatch.newVirtualThreadExecutor();
+      final XenBatch batch = new XenBatch(virtual, 256);
+      time("XenBatch, newVirtualThreadExecutor", new Callable<Object>() {
+         public Object call() throws Exception { return batch.collect(inputs, extractor, new ArrayList<String>()); }
+      });
+      virtual.shutdown();
+   }
+
+
+   public static void main(String[] args) throws Exception {
+      benchmark("deep", deepXml(100000), "*/*/*/*/*");
+      benchmark("wide", wideXml(200000), "item[@type='3']");
+      building(200000);
+      encoding(multilingualXml(200000));
+      parallelToXML(multilingualXml(1000000));
+      reloading(200000);
+      sharing(repetitiveXml(100000));
+      transforming(wideXml(200000));
+      json(wideXml(200000));
+      batch(5000);
+   }
+}
@@ -4,19 +4,37 @@ import com.sun.org.apache.xerces.internal.dom.CoreDocumentImpl;
 import junit.framework.TestCase;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
+import javax.management.ObjectName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class XenTest extends TestCase {
 
@@ -29,6 +47,36 @@ public class XenTest extends TestCase {
       testXen(root);
    }
 
+   public void testXenParserBytes() throws Exception {
+      byte[] bytes = Files.readAllBytes(FILE.toPath());
+      byte[] padded = new byte[bytes.length + 10];
+      System.arraycopy(bytes, 0, padded, 5, bytes.length);
+      testXen(new XenParser().parse(padded, 5, bytes.length));
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      testXen(new XenParser().parse(direct));
+      assertFalse(direct.hasRemaining());
+
+      assertEquals("P\u00e9rez \u20ac", new XenParser().parseText("<a>P\u00e9rez \u20ac</a>").text());
+   }
+
+   public void testXenParserSharing() throws Exception {
+      XenParser parser = new XenParser().setSharing(true);
+      testXen(parser.parse(FILE));
+
+      Xen root = parser.parseText("<r><a x='1' y='2'>US Dollar</a><a x='1' y='2'>US Dollar</a><a y='2' x='1'/></r>");
+      List<Xen> as = root.children();
+      assertSame(as.get(0).attrs, as.get(1).attrs);
+      assertSame(as.get(0).text(), as.get(1).text());
+      assertEquals("[y, x]", as.get(2).attrs.keySet().toString());   // not shared, since the order differs
+
+      as.get(0).putAttributes("x", "changed");
+      assertEquals("1", as.get(1).attribute("x"));
+      as.get(1).removeAttributes("y");
+      assertEquals("2", as.get(2).attribute("y"));
+   }
+
    public void testXenDOM() throws Exception {
       DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
       DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
@@ -37,6 +85,566 @@ public class XenTest extends TestCase {
       testXen(root);
    }
 
+   public void testXenDOMParallel() throws Exception {
+      DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+      dbFactory.setAttribute("http://apache.org/xml/features/dom/defer-node-expansion", Boolean.FALSE);
+      Document doc = dbFactory.newDocumentBuilder().parse(FILE);
+      Xen root = new Converter.FromDocument(true, new ForkJoinPool(2), 2).convert(doc);
+      testXen(root);
+   }
+
+   public void testToDocumentParallel() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      Document doc = new Converter.ToDocument().convert(root, new ForkJoinPool(2));
+      Converter.ToXML toXML = new Converter.ToXML("", " ");
+      assertEquals(toXML.convert(root).toString(), toXML.convert(Converter.FromDocument.DEFAULT.convert(doc)).toString());
+
+      Converter.ToDocument converter = new Converter.ToDocument();
+      DocumentFragment fragment = converter.toFragment(root.children(), new ForkJoinPool(2));
+      assertEquals(root.children().size(), fragment.getChildNodes().getLength());
+      assertSame(converter.document, fragment.getOwnerDocument());
+      assertEquals("COOKING", ((Element)fragment.getFirstChild()).getAttribute("category"));
+   }
+
+   public void testJSON() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      StringWriter sw = new StringWriter();
+      new Converter.ToJSON(sw).convert(root);
+      Xen back = new Converter.FromJSON().convert(new StringReader(sw.toString()));
+      assertTrue(root.deepEquals(back));
+
+      Xen book = new XenParser().parseText("<book category='WEB'><title>T</title><author>A</author><author>\"B\"\n</author><isbn/></book>");
+      sw = new StringWriter();
+      new Converter.ToJSON(sw).convert(book);
+      assertEquals("{\"book\":{\"@category\":\"WEB\",\"title\":\"T\",\"author\":[\"A\",\"\\\"B\\\"\"],\"isbn\":\"\"}}", sw.toString());
+
+      // a name which reappears after a different one keeps the order
+      Xen mixed = new XenParser().parseText("<r><a>1</a><b n='2'><c/></b><a>3</a></r>");
+      sw = new StringWriter();
+      new Converter.ToJSON(sw).convert(mixed);
+      assertEquals("{\"r\":{\"#children\":[{\"a\":\"1\"},{\"b\":{\"@n\":\"2\",\"c\":\"\"}},{\"a\":\"3\"}]}}", sw.toString());
+      assertTrue(mixed.deepEquals(new Converter.FromJSON().parseText(sw.toString())));
+
+      Xen parsed = new Converter.FromJSON().parseText("{ \"a\": { \"@n\": 1, \"#text\": \"x\\u00e9\", \"b\": [true, null, {\"c\": -2.5e3}] } }");
+      assertEquals("1", parsed.attribute("n"));
+      assertEquals("x\u00e9", parsed.text());
+      assertEquals(3, parsed.all("b").size());
+      assertEquals("", parsed.all("b").get(1).text());
+      assertEquals("-2.5e3", parsed.getText("b/c"));
+
+      try {
+         new Converter.FromJSON().parseText("{\"a\": 1, \"b\": 2}");
+         fail();
+      }
+      catch (Converter.FromJSON.MalformedJSONException expected) {
+         assertEquals(15, expected.getPosition());
+      }
+   }
+
+   public void testXenBatch() throws Exception {
+      List<Object> inputs = new ArrayList<Object>();
+      for (int i = 0; i < 50; i++)
+         inputs.add(("<order><id>" + i + "</id></order>").getBytes("UTF-8"));
+      inputs.set(7, "<order><id>".getBytes("UTF-8"));
+      inputs.add(FILE);
+
+      XenBatch batch = new XenBatch(3);
+      List<String> ids = new ArrayList<String>();
+      XenBatch.Stats stats = batch.collect(inputs, new XenBatch.Extractor<String>() {
+         public String extract(Xen root) {
+            return root.name().equals("order") ? root.oneText("id") : root.name();
+         }
+      }, ids);
+      batch.close();
+
+      assertEquals(51, ids.size());
+      assertEquals("6", ids.get(6));
+      assertNull(ids.get(7));
+      assertEquals("49", ids.get(49));
+      assertEquals("bookstore", ids.get(50));
+      assertEquals(51, stats.getCount());
+      assertEquals(1, stats.getFailures());
+      assertTrue(stats.getPercentileMicros(0.5) <= stats.getPercentileMicros(1.0));
+
+      XenBatch.Stats slow = new XenBatch.Stats();
+      slow.record(5000);
+      slow.record(30000000000L);   // 30s, in the last bucket
+      assertEquals(8, slow.getPercentileMicros(0.5));
+      assertEquals(30000000, slow.getPercentileMicros(0.99));
+
+      int xmlFiles = 0;
+      for (File file : XenBatch.files(FILE.getParentFile(), ".xml"))
+         xmlFiles++;
+      assertTrue(xmlFiles >= 1);
+   }
+
+   public void testXenStaxParser() throws Exception {
+      XenStaxParser parser = new XenStaxParser();
+      Xen root = parser.parse(FILE);
+      testXen(root);
+
+      StringWriter sw = new StringWriter();
+      new Converter.ToStream(XMLOutputFactory.newInstance().createXMLStreamWriter(sw)).convert(root);
+      Xen again = new XenParser().parseText(sw.toString());
+      assertEquals(root.depthFirst().size(), again.depthFirst().size());
+      assertEquals(root.get("m:book").attributes(), again.get("m:book").attributes());
+      assertEquals(root.all("book/title").get(1).text(), again.all("book/title").get(1).text());
+
+      Xen noTitles = new XenStaxParser().skipElements("title").parse(FILE);
+      assertEquals(0, noTitles.all("book/title").size());
+      assertEquals(root.all("book/price").size(), noTitles.all("book/price").size());
+
+      XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader("<list><a>1</a><a>2</a></list>"));
+      reader.nextTag();
+      reader.nextTag();
+      assertEquals("1", parser.parse(reader).text());
+      reader.nextTag();
+      assertEquals("2", parser.parse(reader).text());
+   }
+
+   public void testXenPushParser() throws Exception {
+      byte[] bytes = Files.readAllBytes(FILE.toPath());
+      XenPushParser parser = new XenPushParser();
+      for (int chunk : new int[] { 1, 7, 100, bytes.length }) {   // 1 splits the 2 byte UTF-8 in the Spanish author
+         parser.reset();
+         for (int i = 0; i < bytes.length; i += chunk)
+            parser.feed(ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i)));
+         testXen(parser.finish());
+      }
+
+      final List<String> titles = new ArrayList<String>();
+      parser.reset().setRecordListener("book", new XenPushParser.RecordListener() {
+         public void record(Xen record) {
+            titles.add(record.getText("title"));
+         }
+      });
+      Xen root = parser.feed("<shelf><book><title>A &amp; B</title></book><book><title><![CDATA[<C>]]></title></book></shelf>".getBytes("UTF-8")).finish();
+      assertEquals(Arrays.asList("A & B", "<C>"), titles);
+      assertEquals(0, root.children().size());
+
+      // character references survive attribute normalization, literal line ends and tabs do not
+      String xml = "<r a=\"x&#10;y&#9;z\" b=\"1\r\n2\t3\"/>";
+      Xen pushed = new XenPushParser().feed(xml.getBytes("UTF-8")).finish();
+      assertEquals("x\ny\tz", pushed.attribute("a"));
+      assertEquals("1 2 3", pushed.attribute("b"));
+      assertEquals(new XenParser().parseText(xml).attributes(), pushed.attributes());
+
+      try {
+         new XenPushParser().feed("<a><b></a>".getBytes("UTF-8"));
+         fail();
+      }
+      catch (SAXException expected) {}
+      try {
+         new XenPushParser().feed("<a><b>".getBytes("UTF-8")).finish();
+         fail();
+      }
+      catch (SAXException expected) {}
+   }
+
+   public void testMetrics() throws Exception {
+      XenMetrics.Registry registry = new XenMetrics.Registry();
+      XenMetrics.install(registry);
+      try {
+         Xen root = new XenParser().parse(FILE);
+         assertEquals(1, registry.getParseCount());
+         assertEquals(FILE.length(), registry.getParsedSize());
+         assertEquals(root.depthFirst().size(), registry.getParsedElements());
+
+         assertEquals(4, root.all("book/title").size());
+         assertEquals(1, registry.getXpathCompileCount());
+         assertEquals(1, registry.getXpathEvaluateCount());
+         assertEquals(4, registry.getXpathResults());
+         assertTrue(registry.getXpathNodesVisited() > 4);
+         long histogramTotal = 0;
+         for (long count : registry.getXpathLatencyHistogram())
+            histogramTotal += count;
+         assertEquals(1, histogramTotal);
+         root.all("book[price>35]");   // the predicate's path is part of the one evaluation
+         assertEquals(2, registry.getXpathEvaluateCount());
+
+         int length = new Converter.ToXML("", "").convert(root).length();
+         assertEquals(length, registry.getSerializedChars());
+
+         ObjectName name = registry.registerMBean("com.flyingspaniel.xen:type=XenMetrics,name=test");
+         assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ParseCount"));
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+
+         registry.reset();
+         assertEquals(0, registry.getParseCount());
+      }
+      finally {
+         XenMetrics.install(null);
+      }
+      assertSame(XenMetrics.NONE, XenMetrics.get());
+   }
+
+   public void testProfile() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      String query = "book[@category!='WEB'][position()=1]/title/@lang";
+      XpathProfile profile = root.profile(query);
+      assertEquals(1, profile.results().size());
+      assertSame(root.one(query).parent(), profile.results().get(0).parent());   // attributes are mocked up each time
+      assertEquals("en", profile.results().get(0).text());
+      assertEquals(3, profile.steps().size());
+
+      XpathProfile.Step books = profile.steps().get(0);
+      assertEquals(1, books.contexts);
+      assertEquals(7, books.childrenScanned);
+      assertEquals(4, books.candidates);
+      assertEquals(2, books.keptBy[0]);
+      assertEquals(1, books.keptBy[1]);
+      assertEquals(1, books.results);
+      assertEquals(1, profile.steps().get(1).results);
+      assertNotNull(profile.slowest());
+      assertTrue(profile.toString().contains("[@category!='WEB'] kept 2"));
+
+      root.createIndex("book", "category");
+      XpathProfile indexed = root.profile("book[@category='WEB']");
+      assertEquals(1, indexed.steps().get(0).indexLookups);
+      assertEquals(root.all("book[@category='WEB']"), indexed.results());
+   }
+
+   public void testXenWriter() throws Exception {
+      Xen book = new XenParser().parse(FILE).one("book[2]");
+
+      StringWriter sw = new StringWriter();
+      XenWriter writer = new XenWriter(sw);
+      writer.element("catalog").attribute("note", "a \"<b>\" & c");
+      writer.element("item", "Tom & Jerry");
+      writer.element("empty").attribute("skipped", null).end();
+      writer.xen(book);
+      assertEquals(1, writer.depth());
+      writer.close();
+
+      String xml = sw.toString();
+      assertTrue(xml.startsWith("<catalog note=\"a &quot;&lt;b&gt;&quot; &amp; c\"><item>Tom &amp; Jerry</item><empty/><book category=\"MYSTERY\">"));
+      assertTrue(xml.endsWith("</book></catalog>"));
+
+      Xen catalog = new XenParser().parseText(xml);
+      assertEquals("a \"<b>\" & c", catalog.attribute("note"));
+      assertEquals("Tom & Jerry", catalog.getText("item"));
+      assertEquals(book.getText("author"), catalog.getText("book/author"));
+
+      try {
+         new XenWriter(new StringWriter()).element("a").text("x").attribute("too", "late");
+         fail();
+      }
+      catch (IllegalStateException expected) {}
+   }
+
+   public void testToXMLUnicode() throws Exception {
+      String plain = "nothing to escape";
+      assertSame(plain, Converter.ToXML.escapeXML(plain));
+      assertEquals("&#128512; &lt;&#233;&gt;", Converter.ToXML.escapeXML("\uD83D\uDE00 <\u00e9>"));
+      assertEquals("\uD83D\uDE00 &lt;\u00e9&gt;", Converter.ToXML.escapeXML("\uD83D\uDE00 <\u00e9>", false));
+
+      Xen root = new XenParser().parse(FILE);
+      root.append(new Xen("note", root, "\u65e5\u672c & \uD83D\uDE00"));
+      for (boolean asciiOnly : new boolean[] { true, false }) {
+         Converter.ToXML toXML = new Converter.ToXML("  ", "  ", asciiOnly);
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         toXML.writeUTF8(root, bytes);
+         assertEquals(toXML.convert(root).toString().replace("<\\", "</"), bytes.toString("UTF-8"));
+         assertTrue(root.deepEquals(new XenParser().parse(bytes.toByteArray(), 0, bytes.size())));
+      }
+   }
+
+   public void testParallelToXML() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      root.setText("root text");
+      ForkJoinPool pool = new ForkJoinPool(3);
+      for (Converter.ToXML toXML : new Converter.ToXML[] { Converter.ToXML.DEFAULT, new Converter.ToXML("", "\t", false) }) {
+         assertEquals(toXML.convert(root).toString(), toXML.convert(root, pool).toString());
+
+         ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+         toXML.writeUTF8(root, sequential);
+         ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+         toXML.writeUTF8(root, parallel, pool);
+         assertTrue(Arrays.equals(sequential.toByteArray(), parallel.toByteArray()));
+      }
+      pool.shutdown();
+   }
+
+   public void testXpathCache() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      XpathCache cache = new XpathCache(2);
+
+      List<Xen> web = cache.all(root, "book[@category='WEB']");
+      assertEquals(2, web.size());
+      assertSame(web, cache.all(root, "book[@category='WEB']"));
+      assertEquals(1, cache.hits());
+      assertEquals(1, cache.misses());
+
+      // modifying the subtree invalidates
+      root.append(new Xen("book", null).putAttributes("category", "WEB"));
+      assertEquals(3, cache.all(root, "book[@category='WEB']").size());
+      assertEquals(1, cache.invalidations());
+
+      // a rooted path depends upon the whole tree
+      Xen title = root.one("book[1]/title");
+      assertEquals(5, cache.all(title, "/book").size());
+      root.get("m:book").setText("changed");
+      cache.all(title, "/book");
+      assertEquals(2, cache.invalidations());
+
+      cache.all(root, "id");
+      cache.all(root, "m:branch");
+      assertEquals(2, cache.size());
+      assertTrue(cache.evictions() > 0);
+      assertEquals(1.0 / 7, cache.hitRate(), 0.001);
+
+      // so does a predicate which climbs out of the starting Xen
+      assertFalse(new Xpath("title[../../@flag='1']").isLocal());
+      assertTrue(new Xpath("title[@lang='en']").isLocal());
+      Xen book = root.one("book[1]");
+      root.putAttributes("flag", "1");
+      cache = new XpathCache(2);
+      assertEquals(1, cache.all(book, "title[../../@flag='1']").size());
+      root.putAttributes("flag", "0");
+      assertTrue(cache.all(book, "title[../../@flag='1']").isEmpty());
+   }
+
+
+   public void testAttributeIndex() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      assertEquals(1, root.createIndex("book", "category"));
+      AttributeIndex index = root.attributeIndex("book", "category");
+      assertEquals(3, index.size());
+
+      List<Xen> web = root.all("book[@category='WEB']");
+      assertEquals(2, web.size());
+      assertEquals("XQuery Kick Start", web.get(0).getText("title"));
+
+      Xen mystery = root.one("book[@category='MYSTERY']");
+      mystery.putAttributes("category", "WEB");
+      Xen added = new Xen("book", null).putAttributes("category", "WEB");
+      root.append(added);
+      root.remove(web.get(1));
+      web = root.all("book[@category='WEB']");
+      assertEquals(3, web.size());
+      assertSame(mystery, web.get(0));   // still in document order
+      assertSame(added, web.get(2));
+      assertTrue(root.all("book[@category='MYSTERY']").isEmpty());
+      assertTrue(root.all("book[@category='']").isEmpty());
+
+      assertEquals(4, root.createIndex("/book/title", "lang"));
+      assertEquals("La tabla de Flandes", root.oneText("book/title[@lang='es']"));
+      assertEquals(4, root.dropIndex("/book/title", "lang"));
+      assertNull(mystery.attributeIndex("title", "lang"));
+   }
+
+
+   public void testXenDiff() throws Exception {
+      XenParser parser = new XenParser();
+      Xen live = parser.parseText("<c v='1'><item id='a'>A</item><item id='b' x='1'>B</item><item id='c'>C</item><note>n</note></c>");
+      String freshXml = "<c v='2'><item id='a'>A</item><item id='c'>C2</item><item id='d'>D</item><item id='b'>B</item><note>n</note></c>";
+      Xen fresh = parser.parseText(freshXml);
+      live.createIndex("item", "id");
+      Xen a = live.get("item[@id='a']");
+      Xen b = live.get("item[@id='b']");
+
+      XenDiff differ = new XenDiff("id");
+      assertTrue(differ.diff(fresh, parser.parseText(freshXml)).isEmpty());
+      XenDiff.Script script = differ.diff(live, fresh);
+      script.apply(live);
+
+      Converter.ToXML toXML = new Converter.ToXML("", "");
+      assertEquals(toXML.convert(fresh).toString(), toXML.convert(live).toString());
+      assertSame(a, live.children().get(0));   // untouched
+      assertSame(b, live.get("item[@id='b']"));  // moved, found via the index
+      assertFalse(b.hasAttribute("x"));
+      assertEquals("D", live.getText("item[@id='d']"));
+
+      try {
+         script.apply(parser.parseText("<c/>"));
+         fail();
+      }
+      catch (IllegalStateException expected) {}
+   }
+
+
+   public void testStructuralHash() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      Xen copy = new XenParser().parse(FILE);
+      assertEquals(root.structuralHash(), copy.structuralHash());
+      assertTrue(root.deepEquals(copy));
+      assertFalse(root.deepEquals(null));
+
+      Xen title = copy.all("book/title").get(2);
+      long bookHash = title.parent().structuralHash();
+      long otherBook = copy.children().get(0).structuralHash();
+      title.setText("changed");
+      assertFalse(root.deepEquals(copy));
+      assertTrue(bookHash != title.parent().structuralHash());
+      assertEquals(otherBook, copy.children().get(0).structuralHash());
+      title.setText(root.all("book/title").get(2).text());
+      assertTrue(root.deepEquals(copy));
+
+      Xen a = new Xen("x", null).putAttributes("a", "1", "b", "2");
+      Xen b = new Xen("x", null).putAttributes("b", "2", "a", "1");
+      assertTrue(a.deepEquals(b));
+      a.append(new Xen("y", null), new Xen("z", null));
+      b.append(new Xen("z", null), new Xen("y", null));
+      assertFalse(a.deepEquals(b));
+   }
+
+
+   public void testAbsolutePathAfterMove() throws Exception {
+      Xen a = new Xen("a", null);
+      Xen x = new Xen("b", null);
+      a.append(new Xen("b", null)).append(x);
+      assertEquals("/b[2]", x.absolutePath());
+      long stamp = a.modCount();
+
+      a.remove(x);
+      Xen b = new Xen("b", null).append(new Xen("c", null)).append(x);
+      assertEquals(stamp, b.modCount());   // so the old stamps would look valid
+      assertEquals("/b", x.absolutePath());
+      assertSame(x, b.one(x.absolutePath()));
+   }
+
+
+   public void testBulkChildren() throws Exception {
+      Xen catalog = new Xen("catalog", null);
+      catalog.createIndex("item", "type");
+      List<Xen> items = new ArrayList<Xen>();
+      for (int i = 0; i < 1000; i++)
+         items.add(new Xen("item", null, Integer.toString(i)).putAttributes("type", Integer.toString(i % 3)));
+      long modCount = catalog.modCount();
+      catalog.appendAll(items);
+      assertEquals(modCount + 1, catalog.modCount());
+      assertEquals(334, catalog.all("item[@type='0']").size());
+      assertSame(catalog, items.get(999).rootElement());
+
+      catalog.removeIf(new XenPredicate.AttributeMatches("type", "1", false));
+      assertEquals(667, catalog.children().size());
+      assertTrue(catalog.all("item[@type='1']").isEmpty());
+      catalog.remove(items.get(0), items.get(3));
+      assertEquals(332, catalog.all("item[@type='0']").size());
+      modCount = catalog.modCount();
+      catalog.remove(items.get(0));   // no longer a child
+      assertEquals(modCount, catalog.modCount());
+
+      catalog.sortChildren(new Comparator<Xen>() {
+         public int compare(Xen a, Xen b) {
+            return Integer.parseInt(b.text()) - Integer.parseInt(a.text());
+         }
+      });
+      assertEquals("999", catalog.children().get(0).text());
+      assertEquals("998", catalog.first("item[@type='2']").text());   // the index is in the new order
+
+      catalog.replaceChildren(items.subList(0, 3));
+      assertEquals(3, catalog.children().size());
+      assertEquals("1", catalog.one("item[@type='1']").text());
+   }
+
+
+   public void testXenTransform() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      root.createIndex("book", "category");
+      XenTransform transform = new XenTransform()
+            .rename("bookstore", "store")
+            .rename("book", "volume")
+            .dropAll("book[@category='WEB']")
+            .drop("year")
+            .renameAttribute("title", "lang", "language")
+            .rule("price", new XenTransform.Rule() {
+               public Xen apply(Xen price) {
+                  return price.setText("$" + price.text());
+               }
+            });
+
+      Xen store = transform.apply(root);
+      assertEquals("store", store.name());
+      assertSame(store, store.get("volume[@category='CHILDREN']").rootElement());
+      assertEquals(2, store.all("volume").size());
+      assertEquals(1, store.all("m:book").size());
+      assertTrue(store.all("volume/year").isEmpty());
+      assertEquals("$29.99", store.oneText("volume[@category='CHILDREN']/price"));
+      assertEquals("en", store.oneText("volume[@category='CHILDREN']/title/@language"));
+      assertNotNull(store.attributeIndex("book", "category"));
+
+      StringWriter sw = new StringWriter();
+      XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileReader(FILE));
+      int records = new XenTransform().dropAll("title").drop("year").stream(reader, new XenStaxParser(), "book", new XenWriter(sw));
+      assertEquals(4, records);
+      Xen streamed = new XenParser().parseText(sw.toString());
+      assertEquals(4, streamed.all("book").size());
+      assertEquals(1, streamed.all("m:book").size());
+      assertTrue(streamed.all("book/title").isEmpty());
+      assertEquals(4, streamed.all("book/price").size());
+      assertTrue(streamed.all("book/year").isEmpty());
+      assertEquals(1, streamed.all("m:book/year").size());   // not a record, so copied as is
+
+      sw = new StringWriter();
+      reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileReader(FILE));
+      new XenTransform().drop("book", new XenPredicate.AttributeMatches("category", "WEB", false)).stream(reader, new XenStaxParser(), "book", new XenWriter(sw));
+      assertEquals(2, new XenParser().parseText(sw.toString()).all("book").size());
+   }
+
+
+   public void testPredicateExpressions() throws Exception {
+      Xen root = new XenParser().parse(FILE);
+      assertEquals(2, root.all("book[price>35]").size());
+      assertEquals("XQuery Kick Start", root.oneText("book[price>35][position()<=1]/title"));
+      assertEquals("Learning XML", root.oneText("book[price>35][last()]/title"));
+      assertEquals(4, root.all("book[year>=2003 or @category='MYSTERY']").size());
+      assertEquals(1, root.all("book[year=2003 and count(author)>1]").size());
+      assertEquals(3, root.all("book[not(@category='WEB') or position()=last()]").size());
+      assertEquals(2, root.all("book[position()<3]").size());
+      assertEquals("Harry Potter", root.oneText("book[title/@lang='en' and number(price)<30]/title"));
+      assertEquals(1, root.all("book[author!='J K. Rowling'][@category != 'WEB']").size());
+      assertEquals(3, root.all("book[starts-with(title, 'L') or contains(title,'Harry')]").size());
+      assertEquals(1, root.all("book[@category=\"WEB\" and title~'.*XML']").size());
+      assertEquals("XQuery Kick Start", root.oneText("book[position()=last()-1]/title"));
+      assertEquals(root.all("book[2]"), root.all("book[position()=2]"));
+
+      XenPredicate.Filter bounded = PredicateCompiler.compile("@a and position() <= 10");
+      assertEquals(10, bounded.maxPosition());
+      assertTrue(PredicateCompiler.compile("last() > 2").usesSize());
+
+      try {
+         root.all("book[price >]");
+         fail();
+      }
+      catch (IllegalArgumentException expected) {
+         ; // ok
+      }
+   }
+
+
+   public void testDeepDocument() throws Exception {
+      int depth = 100000;
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < depth; i++)
+         sb.append("<a>");
+      sb.append("bottom");
+      for (int i = 0; i < depth; i++)
+         sb.append("</a>");
+
+      Xen root = new XenParser().parseText(sb.toString());
+      List<Xen> all = root.depthFirst();
+      assertEquals(depth, all.size());
+      assertEquals(depth, root.breadthFirst().size());
+      Xen bottom = all.get(depth - 1);
+      assertEquals("bottom", bottom.text());
+      assertSame(root, bottom.rootElement());
+      assertEquals(2 * (depth - 1), bottom.absolutePath().length());
+      bottom.setUserProperty("found", Boolean.TRUE);
+      root.setUserProperty("rootProp", "yes");
+      assertEquals("yes", bottom.userProperty("rootProp"));
+
+      assertEquals(1, root.all("*/*/*").size());
+      String xml = new Converter.ToXML("", "").convert(root).toString();
+      assertTrue(xml.contains("<a>bottom<\\a>"));
+
+      Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+      new Converter.ToDocument(doc).convert(root);
+      Xen back = Converter.FromDocument.DEFAULT.convert(doc);
+      assertEquals(depth, back.depthFirst().size());
+   }
+
+
    // collects all the other tests...
    private void testXen(Xen root) throws Exception {
       testRoot(root);
@@ -70,6 +678,12 @@ public class XenTest extends TestCase {
       assertEquals("<id>Acme Book Emporium<\\id>", breadth.get(6).toString());
       List<Xen> depth = root.depthFirst();
       assertEquals("Everyday Italian", depth.get(2).text());
+      assertEquals("Everyday Italian", breadth.get(8).text());   // level by level, so root, its 7 children, then theirs
+      Iterator<Xen> it = root.breadthFirstIterator();
+      for (Xen xen : breadth)
+         assertSame(xen, it.next());
+      assertFalse(it.hasNext());
+      assertEquals("Giada De Laurentiis", root.get("m:book").getTextContent(",").split(",")[2]);
 
       List<String> years = root.allText("book/year");
       Collections.sort(years);
@@ -109,13 +723,36 @@ public class XenTest extends TestCase {
       title = root.one("/book/title[@lang='es']");
       assertEquals("La tabla de Flandes", title.text());
       testAttributeNode(title.one("@someattr"));
-      assertEquals("/book/title", title.absolutePath());
+      assertEquals("/book[2]/title", title.absolutePath());
+      assertEquals("/book[2]/title/@someattr", title.one("@someattr").absolutePath());
+      assertSame(title, root.one(title.absolutePath()));
+      assertEquals(2, title.depth());
+      Xen newBook = new Xen("book", null).append(new Xen("title", null));
+      root.append(newBook);
+      assertSame(root, newBook.get("title").rootElement());
+      assertEquals(2, newBook.get("title").depth());
+      assertEquals("/book[5]/title", newBook.get("title").absolutePath());
+      root.remove(newBook);
+      assertEquals("/id", root.get("id").absolutePath());
 
       assertNull(root.get("not", "there"));
+      assertEquals("Harry Potter", root.first("book/title").text());
+      assertEquals("en", root.first("book", "title", "@lang").text());
+      assertNull(root.first("book/not there"));
+      assertEquals(2, new Xpath("book/author").evaluate(root, 0, 2).size());
 
       // test wildcard.  Two books have capital X in title
       List<Xen> XMLbooks = root.all(".book.title[.~.*X.*]");
       assertEquals(2, XMLbooks.size());
+      assertEquals(XMLbooks, root.all("book/title[contains(text(),'X')]"));
+      assertEquals(4, root.all("book/title[starts-with(@lang, 'e')]").size());
+      assertEquals(3, root.all("book/title[@lang~'^en.*']").size());
+      assertEquals(1, root.all("book/title[.~'.*Flandes$']").size());
+      assertEquals(1, root.all("book/title[.~'(?i).*flandes']").size());
+
+      Xen multiLine = new Xen("x", null, "one\nXtwo");
+      assertTrue(new XenPredicate.TextMatches(".*X.*", true).apply(Collections.singletonList(multiLine)).isEmpty());
+      assertEquals(1, new XenPredicate.TextMatches("X", XenPredicate.MatchType.CONTAINS).apply(Collections.singletonList(multiLine)).size());
    }
 
    private void testGroovySearch(Xen root) {